@@ -0,0 +1,29 @@
+package sergey.melderis.twothreetree;
+
+
+/**
+ * Internal node of a tree with a KeyNormalizer, see AbbreviatedLeaf.
+ */
+final class AbbreviatedInternal<T extends Comparable> extends Internal<T> {
+    private final TwoThreeTree.KeyNormalizer<T> normalizer;
+    long leftKey;
+    long rightKey;
+
+    AbbreviatedInternal(T leftVal, T rightVal, Node<T> leftChild, Node<T> middleChild, Node<T> rightChild,
+                        TwoThreeTree.KeyNormalizer<T> normalizer) {
+        super(leftVal, rightVal, leftChild, middleChild, rightChild);
+        this.normalizer = normalizer;
+        valuesChanged();
+    }
+
+    @Override
+    void valuesChanged() {
+        leftKey = leftVal == null ? 0 : TwoThreeTree.prefix(normalizer, leftVal);
+        rightKey = rightVal == null ? 0 : TwoThreeTree.prefix(normalizer, rightVal);
+    }
+
+    @Override
+    public Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        return new AbbreviatedInternal<T>(leftVal, rightVal, leftChild, middleChild, rightChild, normalizer);
+    }
+}
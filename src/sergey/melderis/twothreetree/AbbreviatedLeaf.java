@@ -0,0 +1,29 @@
+package sergey.melderis.twothreetree;
+
+
+/**
+ * Terminal node of a tree with a KeyNormalizer. Keeps the normalized prefixes of its values next to them,
+ * see TwoThreeTree.prefix(), so that most comparisons do not have to dereference the values.
+ */
+final class AbbreviatedLeaf<T extends Comparable> extends Leaf<T> {
+    private final TwoThreeTree.KeyNormalizer<T> normalizer;
+    long leftKey;
+    long rightKey;
+
+    AbbreviatedLeaf(T leftVal, T rightVal, TwoThreeTree.KeyNormalizer<T> normalizer) {
+        super(leftVal, rightVal);
+        this.normalizer = normalizer;
+        valuesChanged();
+    }
+
+    @Override
+    void valuesChanged() {
+        leftKey = leftVal == null ? 0 : TwoThreeTree.prefix(normalizer, leftVal);
+        rightKey = rightVal == null ? 0 : TwoThreeTree.prefix(normalizer, rightVal);
+    }
+
+    @Override
+    public Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        return new AbbreviatedLeaf<T>(leftVal, rightVal, normalizer);
+    }
+}
@@ -0,0 +1,22 @@
+package sergey.melderis.twothreetree;
+
+
+/**
+ * Internal node of a tree with a monoid. Caches the aggregate of all values of its subtree, which
+ * the tree recomputes whenever the node's values or children change. Terminal nodes do not cache it,
+ * the aggregate of one or two values is cheap to compute.
+ */
+final class AggregateInternal<T extends Comparable> extends Internal<T> {
+    Object aggregate;
+
+    AggregateInternal(T leftVal, T rightVal, Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        super(leftVal, rightVal, leftChild, middleChild, rightChild);
+    }
+
+    @Override
+    public Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        AggregateInternal<T> copy = new AggregateInternal<T>(leftVal, rightVal, leftChild, middleChild, rightChild);
+        copy.aggregate = aggregate;
+        return copy;
+    }
+}
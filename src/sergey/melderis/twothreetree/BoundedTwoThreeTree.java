@@ -0,0 +1,119 @@
+/**
+ * A TwoThreeTree that holds at most capacity elements: the largest or the smallest ones added to it,
+ * for example the best N keys of a stream.
+ *
+ * Once the set is full, the element that would be evicted next (the boundary) is cached. A new value
+ * that does not beat the boundary is rejected after a single comparison, without touching the tree,
+ * which is what happens to most elements of a long stream. A value that does beat it is inserted, and the
+ * boundary is evicted from the end of one spine of the tree without comparisons. The same walk down the
+ * spine picks up the element next to the boundary, which becomes the new boundary.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.util.Collection;
+
+
+@SuppressWarnings("unchecked")
+public class BoundedTwoThreeTree<T extends Comparable> extends TwoThreeTree<T> {
+
+    public enum Retain {
+        /** Keep the smallest elements, evicting the largest one on overflow. */
+        SMALLEST,
+        /** Keep the largest elements, evicting the smallest one on overflow. */
+        LARGEST
+    }
+
+
+    private final int capacity;
+    private final Retain retain;
+    // The element evicted next. Only cached while the set is full, null otherwise.
+    private T boundary;
+
+
+    public BoundedTwoThreeTree(int capacity, Retain retain) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.retain = retain;
+    }
+
+
+    public int capacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Adds the value if the set is not full, or if the value beats the boundary, in which case the
+     * boundary is evicted.
+     *
+     * @return true if the value was added.
+     */
+    @Override
+    public boolean add(T value) {
+        if (size() < capacity)
+            return super.add(value);
+
+        if (boundary == null)
+            boundary = retain == Retain.LARGEST ? first() : last();
+        int comp = value.compareTo(boundary);
+        if (retain == Retain.LARGEST ? comp <= 0 : comp >= 0)
+            return false;
+        if (!super.add(value))
+            return false;
+
+        boundary = retain == Retain.LARGEST ? evictFirst(boundary) : evictLast(boundary);
+        return true;
+    }
+
+
+    // Removals leave the set below capacity, so the boundary is not needed until it fills up again.
+
+
+    @Override
+    public boolean remove(T value) {
+        if (!super.remove(value))
+            return false;
+        boundary = null;
+        return true;
+    }
+
+    @Override
+    public T pollFirst() {
+        boundary = null;
+        return super.pollFirst();
+    }
+
+    @Override
+    public T pollLast() {
+        boundary = null;
+        return super.pollLast();
+    }
+
+    @Override
+    public int removeRange(T fromElement, T toElement) {
+        boundary = null;
+        return super.removeRange(fromElement, toElement);
+    }
+
+    @Override
+    public boolean removeMatching(Predicate<? super T> filter) {
+        boundary = null;
+        return super.removeMatching(filter);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boundary = null;
+        return super.removeAll(c);
+    }
+
+    @Override
+    public void clear() {
+        boundary = null;
+        super.clear();
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * A sorted set that absorbs writes in a small sorted buffer in front of a TwoThreeTree, like the memtable
+ * of an LSM tree.
+ *
+ * add() and remove() record the net effect of the write in the buffer instead of changing the tree: a value
+ * added that is not in the tree, or a value removed that is. A write that cancels an earlier one just drops
+ * its entry. Splits, merges and node allocation all happen when the buffer is full, or on flush(), when it
+ * is merged into the tree in key order:
+ *   - in one pass of splits and joins, see TwoThreeTree.applySorted(), when the buffer is small compared
+ *     to the tree, which costs O(k log(n / k + 1)) for k buffered writes instead of k descents;
+ *   - otherwise by building a new tree from the merged contents in O(n).
+ *
+ * To return whether it changed the set, a write still has to know if the value is in the tree. By default
+ * the tree keeps a hash index for that, so during a burst a write costs a hash lookup and an insert into
+ * the buffer array, with no descent of the tree. The index costs 8 to 16 bytes per element, see
+ * TwoThreeTree.setHashIndexed(). Without it, each write searches the tree, and the buffer only saves the
+ * structural changes.
+ *
+ * contains() looks at the buffer first. Iteration merges the buffer and the tree on the fly.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.util.*;
+
+
+@SuppressWarnings("unchecked")
+public class BufferedTwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T> {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+
+    private TwoThreeTree<T> tree = new TwoThreeTree<T>();
+    private final boolean hashIndexed;
+
+    // Buffered values in order. added[i] is true if values[i] was added and is not in the tree,
+    // false if it was removed and is still in the tree.
+    private final Object[] values;
+    private final boolean[] added;
+    private int count;
+    private int addedCount;
+
+
+    public BufferedTwoThreeTree() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize number of writes buffered before they are merged into the tree.
+     */
+    public BufferedTwoThreeTree(int bufferSize) {
+        this(bufferSize, true);
+    }
+
+    /**
+     * @param bufferSize  number of writes buffered before they are merged into the tree.
+     * @param hashIndexed whether the tree keeps a hash index, so that writes do not search it.
+     */
+    public BufferedTwoThreeTree(int bufferSize, boolean hashIndexed) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        values = new Object[bufferSize];
+        added = new boolean[bufferSize];
+        this.hashIndexed = hashIndexed;
+        tree.setHashIndexed(hashIndexed);
+    }
+
+
+    public boolean add(T value) {
+        int index = search(value);
+        if (index >= 0) {
+            if (added[index])
+                return false;
+            // Cancels a buffered remove.
+            drop(index);
+            return true;
+        }
+        if (tree.contains(value))
+            return false;
+        buffer(-index - 1, value, true);
+        return true;
+    }
+
+
+    public boolean contains(T value) {
+        int index = search(value);
+        if (index >= 0)
+            return added[index];
+        return tree.contains(value);
+    }
+
+
+    public boolean remove(T value) {
+        if (value == null)
+            return false;
+        int index = search(value);
+        if (index >= 0) {
+            if (!added[index])
+                return false;
+            // Cancels a buffered add.
+            drop(index);
+            return true;
+        }
+        if (!tree.contains(value))
+            return false;
+        buffer(-index - 1, value, false);
+        return true;
+    }
+
+
+    // Binary search of the buffer, with the result of Arrays.binarySearch.
+    private int search(T value) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comp = ((T) values[mid]).compareTo(value);
+            if (comp < 0)
+                low = mid + 1;
+            else if (comp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+
+    private void buffer(int index, T value, boolean add) {
+        System.arraycopy(values, index, values, index + 1, count - index);
+        System.arraycopy(added, index, added, index + 1, count - index);
+        values[index] = value;
+        added[index] = add;
+        count++;
+        if (add)
+            addedCount++;
+        if (count == values.length)
+            flush();
+    }
+
+
+    private void drop(int index) {
+        if (added[index])
+            addedCount--;
+        System.arraycopy(values, index + 1, values, index, count - index - 1);
+        System.arraycopy(added, index + 1, added, index, count - index - 1);
+        values[--count] = null;
+    }
+
+
+    /**
+     * Merges the buffered writes into the tree.
+     */
+    public void flush() {
+        if (count == 0)
+            return;
+        if ((long) count * tree.height() > tree.size()) {
+            // Already sorted, so the sort in fromUnsorted is a single pass.
+            List<T> merged = new ArrayList<T>(size());
+            for (T value : this) {
+                merged.add(value);
+            }
+            tree = TwoThreeTree.fromUnsorted(merged);
+            tree.setHashIndexed(hashIndexed);
+        } else {
+            tree.applySorted(values, added, count);
+        }
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        addedCount = 0;
+    }
+
+
+    /**
+     * Number of writes waiting in the buffer.
+     */
+    public int bufferedCount() {
+        return count;
+    }
+
+
+    // Set operations.
+
+
+    /**
+     * The returning iterator does not support remove.
+     */
+    public Iterator<T> iterator() {
+        return new MergeIterator(false);
+    }
+
+
+    /**
+     * Merges the values of the tree with the buffer, in ascending or descending order. A value in both
+     * is one the buffer removes.
+     */
+    private final class MergeIterator implements Iterator<T> {
+        private final boolean descending;
+        private final Iterator<T> treeValues;
+        private T treeNext;
+        private int bufferIndex;
+        private T next;
+
+        MergeIterator(boolean descending) {
+            this.descending = descending;
+            treeValues = descending ? tree.descendingIterator() : tree.iterator();
+            treeNext = treeValues.hasNext() ? treeValues.next() : null;
+            bufferIndex = descending ? count - 1 : 0;
+            next = advance();
+        }
+
+        private T advance() {
+            while (true) {
+                T buffered = bufferIndex >= 0 && bufferIndex < count ? (T) values[bufferIndex] : null;
+                if (buffered == null) {
+                    T value = treeNext;
+                    treeNext = treeValues.hasNext() ? treeValues.next() : null;
+                    return value;
+                }
+                // Negative if the tree value comes first.
+                int comp = treeNext == null ? 1 : descending ? buffered.compareTo(treeNext) : treeNext.compareTo(buffered);
+                if (comp < 0) {
+                    T value = treeNext;
+                    treeNext = treeValues.hasNext() ? treeValues.next() : null;
+                    return value;
+                }
+                boolean isAdded = added[bufferIndex];
+                bufferIndex += descending ? -1 : 1;
+                if (comp == 0)
+                    treeNext = treeValues.hasNext() ? treeValues.next() : null;
+                if (isAdded)
+                    return buffered;
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public T next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            T value = next;
+            next = advance();
+            return value;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> headSet(T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> tailSet(T fromElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public T first() {
+        return new MergeIterator(false).next();
+    }
+
+    public T last() {
+        return new MergeIterator(true).next();
+    }
+
+    public int size() {
+        return tree.size() + addedCount - (count - addedCount);
+    }
+
+
+    @Override
+    public boolean contains(Object o) {
+        try {
+            return contains((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        try {
+            return remove((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        tree.clear();
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        addedCount = 0;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * An immutable byte string ordered by unsigned lexicographic comparison, the order of memcmp. For strings
+ * encoded in UTF-8 this is the order of their code points.
+ *
+ * The bytes are stored in two parts: the first prefixLength bytes of a prefix array, followed by at most
+ * 8 bytes packed into a long (the head). The prefix array can be shared with other keys that start with
+ * the same bytes, which is how ByteKeyTwoThreeTree stores keys with long common prefixes only once: a key
+ * that differs from its neighbour in its last 8 bytes or fewer costs one 32-byte object and no array.
+ * Keys created with the public constructors keep all their bytes in the prefix array.
+ *
+ * Two keys that share a prefix array skip the shared bytes when compared, and two keys that share the
+ * same prefix are compared as two longs.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+public final class ByteKey implements Comparable<ByteKey> {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Maximal number of bytes in the head.
+    static final int HEAD_BYTES = 8;
+
+    // Only the first prefixLength bytes of the prefix belong to the key.
+    final byte[] prefix;
+    private final int prefixLength;
+    // The headLength bytes after the prefix, big-endian from the most significant byte, the rest zeros.
+    private final int headLength;
+    private final long head;
+
+
+    public ByteKey(byte[] bytes) {
+        this(bytes.clone(), bytes.length, 0, 0);
+    }
+
+
+    private ByteKey(byte[] prefix, int prefixLength, int headLength, long head) {
+        this.prefix = prefix;
+        this.prefixLength = prefixLength;
+        this.headLength = headLength;
+        this.head = head;
+    }
+
+
+    public static ByteKey of(String s) {
+        return wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * A key that uses the array as it is. For keys that are only looked up, or arrays nobody else has.
+     */
+    static ByteKey wrap(byte[] bytes) {
+        return new ByteKey(bytes, bytes.length, 0, 0);
+    }
+
+
+    /**
+     * Returns a key with the bytes, sharing the prefix array of the neighbour, which has the first common
+     * bytes in common with them, if that leaves at most HEAD_BYTES bytes to store. Otherwise the key
+     * gets a copy of the bytes, which the keys added next to it can share.
+     */
+    static ByteKey store(byte[] bytes, ByteKey neighbour, int common) {
+        int shared = neighbour == null ? 0 : Math.min(common, neighbour.prefixLength);
+        int headLength = bytes.length - shared;
+        if (headLength > HEAD_BYTES)
+            return new ByteKey(Arrays.copyOf(bytes, bytes.length), bytes.length, 0, 0);
+
+        long head = 0;
+        for (int i = 0; i < headLength; i++) {
+            head |= (bytes[shared + i] & 0xFFL) << (56 - 8 * i);
+        }
+        return new ByteKey(shared == 0 ? EMPTY : neighbour.prefix, shared, headLength, head);
+    }
+
+
+    public int length() {
+        return prefixLength + headLength;
+    }
+
+
+    public byte byteAt(int i) {
+        return i < prefixLength ? prefix[i] : headByte(i - prefixLength);
+    }
+
+
+    private byte headByte(int i) {
+        return (byte) (head >>> (56 - 8 * i));
+    }
+
+
+    public byte[] toByteArray() {
+        byte[] bytes = Arrays.copyOf(prefix, length());
+        for (int i = 0; i < headLength; i++) {
+            bytes[prefixLength + i] = headByte(i);
+        }
+        return bytes;
+    }
+
+
+    int prefixLength() {
+        return prefixLength;
+    }
+
+
+    // True if all bytes are in the prefix array, which holds nothing else.
+    boolean isFlat() {
+        return headLength == 0 && prefixLength == prefix.length;
+    }
+
+
+    boolean sharesPrefixWith(ByteKey other) {
+        return prefixLength > 0 && prefix == other.prefix;
+    }
+
+
+    /**
+     * Compares the keys as unsigned bytes. If both keys have the same prefix array, the bytes it holds for
+     * both of them are equal and are skipped. Otherwise the prefix arrays are compared, as far as they go
+     * for both keys, and the key with the shorter prefix has at most 8 bytes left: they are compared with
+     * the next 8 bytes of the other key as one unsigned long.
+     */
+    public int compareTo(ByteKey other) {
+        int common = Math.min(prefixLength, other.prefixLength);
+        if (prefix != other.prefix) {
+            byte[] a = prefix;
+            byte[] b = other.prefix;
+            for (int i = 0; i < common; i++) {
+                if (a[i] != b[i])
+                    return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        long word = word(common);
+        long otherWord = other.word(common);
+        if (word != otherWord)
+            return (word ^ Long.MIN_VALUE) < (otherWord ^ Long.MIN_VALUE) ? -1 : 1;
+        // Neither key has bytes left that the other lacks, or the shorter one ends inside the word.
+        return length() - other.length();
+    }
+
+
+    // Bytes from, inclusive, to from + 8, exclusive, with zeros past the end. from must not be past the prefix.
+    private long word(int from) {
+        int n = Math.min(HEAD_BYTES, prefixLength - from);
+        long word = 0;
+        for (int i = 0; i < n; i++) {
+            word |= (prefix[from + i] & 0xFFL) << (56 - 8 * i);
+        }
+        return n == HEAD_BYTES ? word : word | head >>> (8 * n);
+    }
+
+
+    /**
+     * Length of the common prefix of bytes and the key, whose first from bytes are known to be equal.
+     */
+    int commonPrefix(byte[] bytes, int from) {
+        int i = from;
+        int end = Math.min(bytes.length, prefixLength);
+        byte[] prefix = this.prefix;
+        while (i < end && bytes[i] == prefix[i]) {
+            i++;
+        }
+        if (i < prefixLength)
+            return i;
+        end = Math.min(bytes.length, prefixLength + headLength);
+        while (i < end && bytes[i] == headByte(i - prefixLength)) {
+            i++;
+        }
+        return i;
+    }
+
+
+    /**
+     * Compares bytes with the key, given the length of their common prefix as returned by commonPrefix().
+     */
+    int compare(byte[] bytes, int common) {
+        int length = length();
+        if (common == bytes.length || common == length)
+            return bytes.length - length;
+        return (bytes[common] & 0xFF) - (byteAt(common) & 0xFF);
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ByteKey))
+            return false;
+        ByteKey other = (ByteKey) o;
+        return length() == other.length() && compareTo(other) == 0;
+    }
+
+
+    /**
+     * Computed on every call, a cached value would not fit in the 32 bytes of a key.
+     */
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < prefixLength; i++) {
+            h = 31 * h + prefix[i];
+        }
+        for (int i = 0; i < headLength; i++) {
+            h = 31 * h + headByte(i);
+        }
+        return h;
+    }
+
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * A TwoThreeTree of byte string keys that stores common prefixes once.
+ *
+ * When a key is added, it shares the prefix array of its neighbour with the longest common prefix, the
+ * floor or the ceiling, and keeps only the remaining bytes, at most 8 of them, inside the key object. A key
+ * with more bytes left gets its own copy, whose prefix the keys added next to it share in turn. So a set of
+ * identifiers like "customer/eu/00012345" keeps one array per run of neighbours, and each key costs a
+ * 32-byte object, where a String costs 24 bytes plus an array with all its bytes.
+ *
+ * Lookups and adds by byte[] or String descend the tree with the bytes themselves: the keys below a node
+ * lie between the two nearest keys passed on the way down, so their common prefix with the bytes is at
+ * least the shorter of the two prefixes, and comparisons start after it. add() inserts in the same single
+ * descent: the floor and the ceiling of the bytes are among the keys it compares them with, so by the time it
+ * reaches a terminal node it knows the neighbour to share a prefix with, and the key is only created there.
+ * On the way back up, splits are handled by the same code as in TwoThreeTree. A key that is already present
+ * is not copied.
+ *
+ * A removed key's prefix array stays alive as long as keys that share it are in the set.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.nio.charset.StandardCharsets;
+
+
+public class ByteKeyTwoThreeTree extends TwoThreeTree<ByteKey> {
+
+
+    // The key with the longest common prefix seen by a search.
+    private static final class Neighbour {
+        ByteKey key;
+        int common = -1;
+
+        void pass(ByteKey key, int common) {
+            if (common > this.common) {
+                this.key = key;
+                this.common = common;
+            }
+        }
+    }
+
+
+    @Override
+    public boolean add(ByteKey key) {
+        return add(key.isFlat() ? key.prefix : key.toByteArray());
+    }
+
+
+    /**
+     * Adds a key with the bytes, which are copied only if they are not in the set.
+     */
+    public boolean add(byte[] key) {
+        if (root == null)
+            return super.add(ByteKey.store(key, null, 0));
+        Neighbour neighbour = new Neighbour();
+        try {
+            grow(insert(key, neighbour, root, 0, 0));
+        } catch (DuplicateException e) {
+            return false;
+        }
+        added(neighbour.key);
+        return true;
+    }
+
+    public boolean add(String key) {
+        return add(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    public boolean contains(byte[] key) {
+        if (isHashIndexed())
+            return contains(ByteKey.wrap(key));
+        return search(key) != null;
+    }
+
+    public boolean contains(String key) {
+        return contains(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    public boolean remove(byte[] key) {
+        return remove(ByteKey.wrap(key));
+    }
+
+    public boolean remove(String key) {
+        return remove(ByteKey.of(key));
+    }
+
+
+    /**
+     * Inserts a key with the bytes into the subtree, like TwoThreeTree.insert(), comparing the bytes with
+     * the keys as search() does. low and high are the common prefix lengths with the nearest smaller and
+     * larger keys passed so far. The new key is left in the neighbour.
+     */
+    private Node<ByteKey> insert(byte[] bytes, Neighbour neighbour, Node<ByteKey> node, int low, int high) {
+        ByteKey key = node.leftVal;
+        int common = key.commonPrefix(bytes, Math.min(low, high));
+        int comp = key.compare(bytes, common);
+        if (comp == 0)
+            throw DUPLICATE;
+        neighbour.pass(key, common);
+        int child = LEFT;
+        if (comp < 0) {
+            high = common;
+        } else if (node.isTwoNode()) {
+            low = common;
+            child = RIGHT;
+        } else {
+            low = common;
+            key = node.rightVal;
+            common = key.commonPrefix(bytes, Math.min(low, high));
+            comp = key.compare(bytes, common);
+            if (comp == 0)
+                throw DUPLICATE;
+            neighbour.pass(key, common);
+            if (comp < 0) {
+                high = common;
+                child = MIDDLE;
+            } else {
+                low = common;
+                child = RIGHT;
+            }
+        }
+
+        if (node.isTerminal()) {
+            ByteKey stored = ByteKey.store(bytes, neighbour.key, neighbour.common);
+            neighbour.key = stored;
+            return insertTerminal(node, child, stored);
+        }
+        return absorb(node, child, insert(bytes, neighbour, child(node, child), low, high));
+    }
+
+
+    /**
+     * Returns the key equal to the bytes, or null.
+     */
+    private ByteKey search(byte[] bytes) {
+        // Common prefix lengths with the nearest smaller and larger keys passed so far.
+        int low = 0;
+        int high = 0;
+        Node<ByteKey> node = root;
+        while (node != null) {
+            ByteKey key = node.leftVal;
+            int common = key.commonPrefix(bytes, Math.min(low, high));
+            int comp = key.compare(bytes, common);
+            if (comp == 0)
+                return key;
+            if (comp < 0) {
+                high = common;
+                node = node.leftChild();
+                continue;
+            }
+            low = common;
+            if (node.isTwoNode()) {
+                node = node.rightChild();
+                continue;
+            }
+
+            key = node.rightVal;
+            common = key.commonPrefix(bytes, Math.min(low, high));
+            comp = key.compare(bytes, common);
+            if (comp == 0)
+                return key;
+            if (comp < 0) {
+                high = common;
+                node = node.middleChild();
+            } else {
+                low = common;
+                node = node.rightChild();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * An open-addressing hash set used by TwoThreeTree to answer contains() without descending the tree.
+ *
+ * Keys are kept in a single array with linear probing and at most half of the slots in use, so a lookup
+ * usually reads one or two slots next to each other. Removal shifts the following keys of the probe
+ * sequence back instead of leaving deleted markers, so lookups never slow down after many removals.
+ *
+ * Keys are compared with equals and hashCode, which must be consistent with compareTo.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+final class HashIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] keys;
+    private int mask;
+    private int size;
+    // Slot where pollAny() starts looking.
+    private int cursor;
+
+
+    HashIndex(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L * size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        mask = capacity - 1;
+        cursor = 0;
+    }
+
+
+    // Spreads the bits of hashCode, so that keys with hash codes differing only in high bits
+    // do not end up in the same run of slots.
+    private int slot(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+
+    public boolean contains(Object key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            Object k = keys[i];
+            if (k == null)
+                return false;
+            if (k.equals(key))
+                return true;
+        }
+    }
+
+
+    public boolean add(Object key) {
+        int i = slot(key);
+        for (Object k = keys[i]; k != null; k = keys[i]) {
+            if (k.equals(key))
+                return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        if (++size * 2 > keys.length)
+            resize(keys.length << 1);
+        return true;
+    }
+
+
+    public boolean remove(Object key) {
+        int i = slot(key);
+        for (Object k = keys[i]; ; k = keys[i]) {
+            if (k == null)
+                return false;
+            if (k.equals(key))
+                break;
+            i = (i + 1) & mask;
+        }
+
+        // Move back every following key of the run that would not be found past the emptied slot.
+        int hole = i;
+        for (i = (i + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+        size--;
+        return true;
+    }
+
+
+    private void resize(int capacity) {
+        Object[] old = keys;
+        allocate(capacity);
+        for (Object key : old) {
+            if (key != null) {
+                int i = slot(key);
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+
+    /**
+     * Removes and returns some key, or returns null if the index is empty. Successive calls continue
+     * where the previous one stopped, so draining the index costs O(capacity) in total.
+     */
+    public Object pollAny() {
+        if (size == 0)
+            return null;
+        while (keys[cursor] == null) {
+            cursor = (cursor + 1) & mask;
+        }
+        Object key = keys[cursor];
+        remove(key);
+        return key;
+    }
+
+
+    HashIndex copy() {
+        HashIndex copy = new HashIndex(0);
+        copy.keys = keys.clone();
+        copy.mask = mask;
+        copy.size = size;
+        return copy;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+}
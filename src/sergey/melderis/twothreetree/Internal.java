@@ -0,0 +1,65 @@
+package sergey.melderis.twothreetree;
+
+
+class Internal<T extends Comparable> extends Node<T> {
+    private Node<T> leftChild;
+    private Node<T> middleChild;
+    private Node<T> rightChild;
+
+    Internal(T leftVal, T rightVal, Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        this.leftVal = leftVal;
+        this.rightVal = rightVal;
+        this.leftChild = leftChild;
+        this.middleChild = middleChild;
+        this.rightChild = rightChild;
+    }
+
+    public boolean isTerminal() {
+        return false;
+    }
+
+    public Node<T> leftChild() {
+        return leftChild;
+    }
+
+    public Node<T> middleChild() {
+        assert isThreeNode();
+        return middleChild;
+    }
+
+    public Node<T> rightChild() {
+        return rightChild;
+    }
+
+    /**
+     * Replaces the children. A 2-node has no middle child.
+     */
+    public void setChildren(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        this.leftChild = leftChild;
+        this.middleChild = middleChild;
+        this.rightChild = rightChild;
+    }
+
+    public void setLeftChild(Node<T> leftChild) {
+        this.leftChild = leftChild;
+    }
+
+    public void setMiddleChild(Node<T> middleChild) {
+        assert isThreeNode();
+        this.middleChild = middleChild;
+    }
+
+    public void setRightChild(Node<T> rightChild) {
+        this.rightChild = rightChild;
+    }
+
+    @Override
+    public void makeHole(Node<T> child) {
+        clearValues();
+        setChildren(child, null, null);
+    }
+
+    public Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        return new Internal<T>(leftVal, rightVal, leftChild, middleChild, rightChild);
+    }
+}
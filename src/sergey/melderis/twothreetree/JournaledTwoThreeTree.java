@@ -0,0 +1,616 @@
+/**
+ * A durable TwoThreeTree. Every add and remove that changes the set is appended to a write-ahead journal
+ * before it is applied, and the set is rebuilt from the last snapshot plus the journal tail when it is opened
+ * again after a crash.
+ *
+ * Files kept in the directory:
+ *   snapshot    - elements of the set in order, written by checkpoint(), and the generation of the first
+ *                 journal written after them.
+ *   journal.<g> - operations of generation g, "journal" for generation 0. Each record is
+ *                 [op: byte][length: int][value: length bytes][crc32 of op and value: int].
+ *                 A torn or corrupt record at the end of a journal is the result of a crash during an append,
+ *                 and is discarded on replay together with everything after it.
+ *
+ * How soon an appended record reaches the disk depends on the SyncPolicy. With SyncPolicy.ALWAYS callers
+ * that append concurrently share a single fsync (group commit): the first caller to get to the disk forces
+ * the records appended by all of them.
+ *
+ * A checkpoint happens automatically after checkpointInterval journal records. Holding the lock, it only
+ * switches to the journal of the next generation, which takes a constant amount of work however large the set
+ * is. The journal position marks the state of the set to snapshot: after the lock is released, that state is
+ * rebuilt from the files, by loading the old snapshot and replaying the journals before the new one, and is
+ * written to the new snapshot. This is done by the thread that made the operation that triggered the
+ * checkpoint, while the other writers keep appending to the new journal. The snapshot is written to a
+ * temporary file, forced and renamed over the old one, and the directory is forced so that the rename is
+ * durable. Only then are the journals of older generations deleted. If the process dies before that, the
+ * set is rebuilt from the old snapshot and every journal after it.
+ *
+ * An automatic checkpoint that fails does not fail the operation that triggered it, which is already
+ * applied and journaled. The failure is available from checkpointFailure(), and the checkpoint is tried
+ * again after another checkpointInterval records. Until one succeeds, the journals keep growing.
+ *
+ * All methods are synchronized on the tree. Iteration must be synchronized on the tree by the caller,
+ * as with Collections.synchronizedSet.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+@SuppressWarnings("unchecked")
+public class JournaledTwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T>, Closeable {
+
+    /**
+     * Reads and writes values of the set.
+     */
+    public interface Codec<T> {
+        public void write(T value, DataOutput out) throws IOException;
+
+        public T read(DataInput in) throws IOException;
+    }
+
+
+    public enum SyncPolicy {
+        /** add and remove return only after their journal record is on disk. Concurrent callers share fsyncs. */
+        ALWAYS,
+        /** The journal is forced at most once per sync interval, on the first write after the interval expires. */
+        PERIODIC,
+        /** The journal is forced only by checkpoints and close. */
+        NEVER
+    }
+
+
+    /**
+     * Thrown when the journal cannot be written. The operation that failed is not applied to the set.
+     */
+    public static class JournalException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public JournalException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1 << 20;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TMP = "snapshot.tmp";
+    private static final String JOURNAL = "journal";
+
+    // Snapshots without a generation are followed by the journal of generation 0.
+    private static final int SNAPSHOT_MAGIC = 0x32335453;
+    private static final int GENERATION_SNAPSHOT_MAGIC = 0x32335447;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    // op, length and crc
+    private static final int RECORD_OVERHEAD = 9;
+
+
+    private final TwoThreeTree<T> tree;
+    private final File directory;
+    private final Codec<T> codec;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final int checkpointInterval;
+
+    // Journal of the current generation. Replaced by a checkpoint holding the monitor and the sync lock.
+    private long generation;
+    private RandomAccessFile journalFile;
+    private FileChannel journal;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    // Used by append() only.
+    private final CRC32 crc = new CRC32();
+    private int journalRecords;
+
+    // Sequence number of the last record written to the journal, and of the last one known to be on disk.
+    private volatile long appendedSeq;
+    private long syncedSeq;
+    private long lastSyncMillis;
+    private final Object syncLock = new Object();
+
+    // Held while a snapshot is written, outside the monitor. Taken before the monitor when both are needed.
+    private final Object checkpointLock = new Object();
+    // Set when an automatic checkpoint is due, so that only one writer takes it.
+    private boolean checkpointDue;
+    private volatile IOException checkpointFailure;
+
+
+    public JournaledTwoThreeTree(File directory, Codec<T> codec, SyncPolicy syncPolicy) throws IOException {
+        this(directory, codec, syncPolicy, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Opens the tree stored in the directory, creating the directory if it does not exist.
+     *
+     * @param syncIntervalMillis how often the journal is forced with SyncPolicy.PERIODIC.
+     * @param checkpointInterval number of journal records after which a checkpoint is taken.
+     */
+    public JournaledTwoThreeTree(File directory, Codec<T> codec, SyncPolicy syncPolicy,
+                                 long syncIntervalMillis, int checkpointInterval) throws IOException {
+        if (checkpointInterval < 1)
+            throw new IllegalArgumentException("checkpointInterval must be positive: " + checkpointInterval);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        this.directory = directory;
+        this.codec = codec;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.checkpointInterval = checkpointInterval;
+
+        Snapshot<T> snapshot = readSnapshot();
+        tree = snapshot.tree;
+        long snapshotGeneration = snapshot.generation;
+        // Replay every journal written since the snapshot. The last one stays open for appends.
+        generation = snapshotGeneration;
+        openJournal();
+        replayOpenJournal();
+        while (journalFile(generation + 1).exists()) {
+            journalFile.close();
+            generation++;
+            openJournal();
+            replayOpenJournal();
+        }
+        // Left over by a crash after a snapshot was renamed.
+        deleteJournalsBefore(snapshotGeneration);
+        // The journal may have just been created.
+        syncDirectory();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+
+    private File journalFile(long generation) {
+        return new File(directory, generation == 0 ? JOURNAL : JOURNAL + "." + generation);
+    }
+
+
+    private void openJournal() throws IOException {
+        journalFile = new RandomAccessFile(journalFile(generation), "rw");
+        journal = journalFile.getChannel();
+    }
+
+
+    private void deleteJournalsBefore(long generation) throws IOException {
+        for (long g = generation - 1; g >= 0 && journalFile(g).exists(); g--) {
+            if (!journalFile(g).delete())
+                throw new IOException("Cannot delete " + journalFile(g));
+        }
+    }
+
+
+    /**
+     * Forces the directory, so that files created or renamed in it survive a power loss. Windows cannot
+     * open a directory, and does not need this.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (System.getProperty("os.name").startsWith("Windows"))
+                return;
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    // The set stored in a snapshot, and the generation of the first journal to replay on top of it.
+    private static final class Snapshot<T extends Comparable> {
+        final TwoThreeTree<T> tree;
+        final long generation;
+
+        Snapshot(TwoThreeTree<T> tree, long generation) {
+            this.tree = tree;
+            this.generation = generation;
+        }
+    }
+
+
+    /**
+     * Reads the snapshot into an array and builds the tree from it in O(n). The elements are stored in
+     * order, so the only comparisons are the ones that check it.
+     */
+    private Snapshot<T> readSnapshot() throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.exists())
+            return new Snapshot<T>(new TwoThreeTree<T>(), 0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != GENERATION_SNAPSHOT_MAGIC)
+                throw new IOException("Not a snapshot: " + file);
+            long generation = magic == GENERATION_SNAPSHOT_MAGIC ? in.readLong() : 0;
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Corrupt snapshot: " + file);
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                T value = codec.read(in);
+                if (i > 0 && ((T) values[i - 1]).compareTo(value) >= 0)
+                    throw new IOException("Snapshot is not in order: " + file);
+                values[i] = value;
+            }
+            return new Snapshot<T>(TwoThreeTree.<T>fromSorted(values, 0, count), generation);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private void replayOpenJournal() throws IOException {
+        journalRecords += replayJournal(journal, tree);
+        if (journal.position() < journal.size()) {
+            // Torn tail from a crash during an append.
+            journal.truncate(journal.position());
+            journal.force(true);
+        }
+    }
+
+
+    /**
+     * Applies the valid records of the journal to the tree, and returns their number. The channel is left
+     * positioned after the last valid record.
+     */
+    private int replayJournal(FileChannel channel, TwoThreeTree<T> into) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        // Not the one of append(), checkpoints replay old journals while records are appended.
+        CRC32 crc = new CRC32();
+        int records = 0;
+        long validLength = 0;
+        long fileLength = channel.size();
+        while (validLength + RECORD_OVERHEAD <= fileLength) {
+            byte op = in.readByte();
+            int length = in.readInt();
+            if (length < 0 || validLength + RECORD_OVERHEAD + length > fileLength)
+                break;
+            byte[] value = new byte[length];
+            in.readFully(value);
+            int checksum = in.readInt();
+            crc.reset();
+            crc.update(op);
+            crc.update(value);
+            if ((int) crc.getValue() != checksum || (op != OP_ADD && op != OP_REMOVE))
+                break;
+
+            T t = codec.read(new DataInputStream(new ByteArrayInputStream(value)));
+            if (op == OP_ADD)
+                into.add(t);
+            else
+                into.remove(t);
+            validLength += RECORD_OVERHEAD + length;
+            records++;
+        }
+        channel.position(validLength);
+        return records;
+    }
+
+
+    public boolean add(T value) {
+        long seq;
+        boolean checkpoint;
+        synchronized (this) {
+            if (tree.contains(value))
+                return false;
+            seq = append(OP_ADD, value);
+            tree.add(value);
+            checkpoint = isCheckpointDue();
+        }
+        syncIfNeeded(seq);
+        if (checkpoint)
+            automaticCheckpoint();
+        return true;
+    }
+
+
+    public boolean remove(T value) {
+        long seq;
+        boolean checkpoint;
+        synchronized (this) {
+            if (value == null || !tree.contains(value))
+                return false;
+            seq = append(OP_REMOVE, value);
+            tree.remove(value);
+            checkpoint = isCheckpointDue();
+        }
+        syncIfNeeded(seq);
+        if (checkpoint)
+            automaticCheckpoint();
+        return true;
+    }
+
+
+    // Must be called holding the monitor. Returns the sequence number of the record.
+    private long append(byte op, T value) {
+        try {
+            recordBytes.reset();
+            recordOut.writeByte(op);
+            recordOut.writeInt(0);
+            codec.write(value, recordOut);
+            byte[] record = recordBytes.toByteArray();
+            int length = record.length - 5;
+            record[1] = (byte) (length >>> 24);
+            record[2] = (byte) (length >>> 16);
+            record[3] = (byte) (length >>> 8);
+            record[4] = (byte) length;
+
+            crc.reset();
+            crc.update(op);
+            crc.update(record, 5, length);
+            ByteBuffer buffer = ByteBuffer.allocate(record.length + 4);
+            buffer.put(record).putInt((int) crc.getValue());
+            buffer.flip();
+            long position = journal.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+            } catch (IOException e) {
+                // Do not leave a partial record in front of the next one.
+                journal.truncate(position);
+                journal.position(position);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new JournalException("Cannot append to journal in " + directory, e);
+        }
+        journalRecords++;
+        return ++appendedSeq;
+    }
+
+
+    private void syncIfNeeded(long seq) {
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            sync(seq);
+        } else if (syncPolicy == SyncPolicy.PERIODIC) {
+            boolean expired;
+            synchronized (syncLock) {
+                expired = System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis;
+            }
+            if (expired)
+                sync(seq);
+        }
+    }
+
+
+    /**
+     * Group commit. Callers queue up on the sync lock while one of them forces the journal; the force covers
+     * every record appended before it started, so most of the queued callers find their record already
+     * synced and return without touching the disk.
+     */
+    private void sync(long seq) {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq)
+                return;
+            long target = appendedSeq;
+            try {
+                journal.force(false);
+            } catch (IOException e) {
+                throw new JournalException("Cannot sync journal in " + directory, e);
+            }
+            syncedSeq = target;
+            lastSyncMillis = System.currentTimeMillis();
+        }
+    }
+
+
+    // Must be called holding the monitor. True for the one caller that should take the checkpoint.
+    private boolean isCheckpointDue() {
+        if (checkpointDue || journalRecords < checkpointInterval)
+            return false;
+        checkpointDue = true;
+        return true;
+    }
+
+
+    // Must be called without holding the monitor.
+    private void automaticCheckpoint() {
+        try {
+            checkpoint();
+            checkpointFailure = null;
+        } catch (IOException e) {
+            checkpointFailure = e;
+            synchronized (this) {
+                // Try again after another interval rather than on every write.
+                journalRecords = 0;
+            }
+        } finally {
+            synchronized (this) {
+                checkpointDue = false;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the exception that made the last automatic checkpoint fail, or null if it succeeded.
+     */
+    public IOException checkpointFailure() {
+        return checkpointFailure;
+    }
+
+
+    /**
+     * Writes the whole set to a new snapshot and deletes the journals it replaces. Writers are blocked only
+     * while the journal is switched: the set that goes into the snapshot is rebuilt from the files.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long snapshotGeneration;
+            synchronized (this) {
+                snapshotGeneration = nextJournal();
+            }
+            writeSnapshot(recover(snapshotGeneration), snapshotGeneration);
+        }
+    }
+
+
+    /**
+     * Rebuilds the set as it was when the journal of the generation was started, from the snapshot and the
+     * journals before that one, which are no longer written. Must be called holding the checkpoint lock.
+     */
+    private TwoThreeTree<T> recover(long generation) throws IOException {
+        Snapshot<T> snapshot = readSnapshot();
+        for (long g = snapshot.generation; g < generation; g++) {
+            RandomAccessFile file = new RandomAccessFile(journalFile(g), "r");
+            try {
+                replayJournal(file.getChannel(), snapshot.tree);
+            } finally {
+                file.close();
+            }
+        }
+        return snapshot.tree;
+    }
+
+
+    /**
+     * Switches to the journal of the next generation, and returns that generation. Records appended
+     * from now on are not in a snapshot of the current set. Must be called holding the monitor.
+     */
+    private long nextJournal() throws IOException {
+        synchronized (syncLock) {
+            // The old journal must not lose records that the new one builds on.
+            journal.force(false);
+            journalFile.close();
+            generation++;
+            openJournal();
+            syncedSeq = appendedSeq;
+            lastSyncMillis = System.currentTimeMillis();
+        }
+        syncDirectory();
+        journalRecords = 0;
+        return generation;
+    }
+
+
+    // Must be called holding the checkpoint lock.
+    private void writeSnapshot(TwoThreeTree<T> values, long generation) throws IOException {
+        File tmp = new File(directory, SNAPSHOT_TMP);
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(GENERATION_SNAPSHOT_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(values.size());
+            for (T value : values) {
+                codec.write(value, out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(new File(directory, SNAPSHOT)))
+            throw new IOException("Cannot rename " + tmp);
+        // The older journals are all that is left of the set if the rename is lost.
+        syncDirectory();
+        deleteJournalsBefore(generation);
+    }
+
+
+    /**
+     * Forces the journal and closes it. The set must not be modified afterwards.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            journal.force(true);
+        } finally {
+            journalFile.close();
+        }
+    }
+
+
+    // Set operations.
+
+
+    public synchronized boolean contains(T value) {
+        return tree.contains(value);
+    }
+
+    /**
+     * The returning iterator does not support remove.
+     */
+    public Iterator<T> iterator() {
+        return tree.iterator();
+    }
+
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> headSet(T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> tailSet(T fromElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized T first() {
+        return tree.first();
+    }
+
+    public synchronized T last() {
+        return tree.last();
+    }
+
+    public synchronized int size() {
+        return tree.size();
+    }
+
+
+    @Override
+    public boolean contains(Object o) {
+        try {
+            return contains((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        try {
+            return remove((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Clearing is recorded as a checkpoint of the empty set. Unlike other checkpoints, the snapshot is
+     * written holding the monitor, so that no operation can be journaled before the clear is durable.
+     */
+    @Override
+    public void clear() {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                tree.clear();
+                try {
+                    writeSnapshot(new TwoThreeTree<T>(), nextJournal());
+                } catch (IOException e) {
+                    throw new JournalException("Cannot checkpoint " + directory, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * A sorted set backed by a TwoThreeTree that defers the structural work of removals.
+ *
+ * remove() does not touch the tree. The value is recorded as a tombstone in a hash set kept next to the
+ * tree, and from then on contains(), iteration, first() and last() skip it. The tree keeps a hash index,
+ * so removing a value costs two hash lookups and a hash insert, with no descent and no rebalancing, and a
+ * burst of removals does not cause latency spikes. The index costs 8 to 16 bytes per element, see
+ * TwoThreeTree.setHashIndexed().
+ *
+ * The tombstones are purged from the tree in two ways:
+ *   - while they exceed compactionRatio of the tree, every add() and remove() purges up to
+ *     PURGES_PER_WRITE of them, one TwoThreeTree.remove() each. That is more than a remove adds, so the
+ *     tombstones shrink back under the ratio, and no single write pays more than a few removals;
+ *   - compact() removes all of them in one batched pass with TwoThreeTree.removeMatching(), which removes
+ *     runs of neighbouring tombstones as ranges, or rebuilds the tree if they are scattered. It costs up to
+ *     O(n), so it is only run when called, e.g. when the set is idle.
+ *
+ * Adding a value that is a tombstone only drops the tombstone.
+ *
+ * Elements must have equals and hashCode consistent with compareTo.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.util.*;
+
+
+@SuppressWarnings("unchecked")
+public class LazyDeleteTwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T> {
+
+    public static final double DEFAULT_COMPACTION_RATIO = 0.25;
+    public static final int PURGES_PER_WRITE = 2;
+
+
+    private final TwoThreeTree<T> tree = new TwoThreeTree<T>();
+    // Values still in the tree that have been removed from the set.
+    private final HashIndex tombstones = new HashIndex(0);
+    private final double compactionRatio;
+
+
+    public LazyDeleteTwoThreeTree() {
+        this(DEFAULT_COMPACTION_RATIO);
+    }
+
+    /**
+     * @param compactionRatio the tombstones are purged all at once when there are more of them than
+     *                        this fraction of the elements in the tree.
+     */
+    public LazyDeleteTwoThreeTree(double compactionRatio) {
+        if (!(compactionRatio > 0))
+            throw new IllegalArgumentException("compactionRatio must be positive: " + compactionRatio);
+        this.compactionRatio = compactionRatio;
+        tree.setHashIndexed(true);
+    }
+
+
+    public boolean add(T value) {
+        if (tombstones.remove(value))
+            return true;
+        boolean added = tree.add(value);
+        if (added)
+            purge();
+        return added;
+    }
+
+
+    public boolean contains(T value) {
+        return tree.contains(value) && !tombstones.contains(value);
+    }
+
+
+    public boolean remove(T value) {
+        if (value == null || !tree.contains(value) || !tombstones.add(value))
+            return false;
+        purge();
+        return true;
+    }
+
+
+    // Purges up to PURGES_PER_WRITE tombstones while there are more than compactionRatio of the tree.
+    private void purge() {
+        for (int i = 0; i < PURGES_PER_WRITE && tombstones.size() > compactionRatio * tree.size(); i++) {
+            tree.remove((T) tombstones.pollAny());
+        }
+    }
+
+
+    /**
+     * Removes all tombstones from the tree, in O(n) at worst.
+     */
+    public void compact() {
+        if (tombstones.size() == 0)
+            return;
+        tree.removeMatching(new TwoThreeTree.Predicate<T>() {
+            public boolean apply(T value) {
+                return tombstones.contains(value);
+            }
+        });
+        tombstones.clear();
+    }
+
+
+    /**
+     * Number of removed values that are still in the tree.
+     */
+    public int tombstoneCount() {
+        return tombstones.size();
+    }
+
+
+    // Set operations.
+
+
+    /**
+     * The returning iterator does not support remove.
+     */
+    public Iterator<T> iterator() {
+        return live(tree.iterator());
+    }
+
+
+    // Skips the tombstones.
+    private Iterator<T> live(final Iterator<T> values) {
+        return new Iterator<T>() {
+            T next = advance();
+
+            private T advance() {
+                while (values.hasNext()) {
+                    T value = values.next();
+                    if (!tombstones.contains(value))
+                        return value;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public T next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                T value = next;
+                next = advance();
+                return value;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> headSet(T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> tailSet(T fromElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public T first() {
+        return live(tree.iterator()).next();
+    }
+
+    public T last() {
+        return live(tree.descendingIterator()).next();
+    }
+
+    public int size() {
+        return tree.size() - tombstones.size();
+    }
+
+
+    @Override
+    public boolean contains(Object o) {
+        try {
+            return contains((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        try {
+            return remove((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        tree.clear();
+        tombstones.clear();
+    }
+}
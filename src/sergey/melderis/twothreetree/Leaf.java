@@ -0,0 +1,30 @@
+package sergey.melderis.twothreetree;
+
+
+class Leaf<T extends Comparable> extends Node<T> {
+
+    Leaf(T leftVal, T rightVal) {
+        this.leftVal = leftVal;
+        this.rightVal = rightVal;
+    }
+
+    public boolean isTerminal() {
+        return true;
+    }
+
+    public Node<T> leftChild() {
+        return null;
+    }
+
+    public Node<T> middleChild() {
+        return null;
+    }
+
+    public Node<T> rightChild() {
+        return null;
+    }
+
+    public Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        return new Leaf<T>(leftVal, rightVal);
+    }
+}
@@ -0,0 +1,147 @@
+package sergey.melderis.twothreetree;
+
+
+/**
+ * A node holds one value (2-node) or two values (3-node). A 2-node keeps its value in leftVal, and its
+ * rightVal is null, so a node changes between the two shapes in place.
+ *
+ * Terminal nodes are Leaf instances, which have no child references at all, and only Internal nodes can
+ * have their children replaced. Nodes do not point to their parents; operations that have to go back up
+ * the tree do it on the way back from the recursive descent.
+ *
+ * During removal a node can temporarily be a hole: a node without values whose only child, if any,
+ * is its left child.
+ */
+abstract class Node<T extends Comparable> {
+    // When node is 2-node, leftVal is the values, and rightVal is null.
+    T leftVal;
+    T rightVal;
+
+
+    public static <T extends Comparable> Node<T> newTwoNode(T value) {
+        return new Leaf<T>(value, null);
+    }
+
+
+    /**
+     * Returns a 2-node with the children, a terminal one if they are null.
+     */
+    public static <T extends Comparable> Node<T> newTwoNode(T value, Node<T> leftChild, Node<T> rightChild) {
+        if (leftChild == null)
+            return new Leaf<T>(value, null);
+        return new Internal<T>(value, null, leftChild, null, rightChild);
+    }
+
+
+    /**
+     * Returns a 3-node with the children, a terminal one if they are null. The values must be in order.
+     */
+    public static <T extends Comparable> Node<T> newThreeNode(T leftVal, T rightVal,
+                                                           Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        if (leftChild == null)
+            return new Leaf<T>(leftVal, rightVal);
+        return new Internal<T>(leftVal, rightVal, leftChild, middleChild, rightChild);
+    }
+
+
+    public abstract boolean isTerminal();
+
+    public abstract Node<T> leftChild();
+
+    public abstract Node<T> middleChild();
+
+    public abstract Node<T> rightChild();
+
+    /**
+     * Returns a new node of the same kind with the same values and the given children.
+     */
+    public abstract Node<T> copy(Node<T> leftChild, Node<T> middleChild, Node<T> rightChild);
+
+
+    public T val() {
+        assert isTwoNode();
+        return leftVal;
+    }
+
+
+    public T leftVal() {
+        assert isThreeNode();
+        return leftVal;
+    }
+
+    public void setVal(T val) {
+        assert isTwoNode();
+        leftVal = val;
+        valuesChanged();
+    }
+
+
+    public T rightVal() {
+        assert isThreeNode();
+        return rightVal;
+    }
+
+    /**
+     * Replaces the left value, which in a 2-node is its only value.
+     */
+    public void setLeftVal(T leftVal) {
+        this.leftVal = leftVal;
+        valuesChanged();
+    }
+
+    public void setRightVal(T rightVal) {
+        assert isThreeNode();
+        this.rightVal = rightVal;
+        valuesChanged();
+    }
+
+    /**
+     * Turns the node into a 2-node with the value.
+     */
+    public void makeTwoNode(T val) {
+        leftVal = val;
+        rightVal = null;
+        valuesChanged();
+    }
+
+    /**
+     * Turns the node into a 3-node with the values, which must be in order.
+     */
+    public void makeThreeNode(T leftVal, T rightVal) {
+        this.leftVal = leftVal;
+        this.rightVal = rightVal;
+        valuesChanged();
+    }
+
+    /**
+     * Turns the node into a hole with the child, which is null for a terminal node.
+     */
+    public void makeHole(Node<T> child) {
+        assert child == null;
+        clearValues();
+    }
+
+    final void clearValues() {
+        leftVal = null;
+        rightVal = null;
+        valuesChanged();
+    }
+
+    /**
+     * Called after every change of the values, for nodes that cache something derived from them.
+     */
+    void valuesChanged() {
+    }
+
+    public final boolean isTwoNode() {
+        return rightVal == null;
+    }
+
+    public final boolean isThreeNode() {
+        return rightVal != null;
+    }
+
+    public final boolean isHole() {
+        return leftVal == null;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Publishes a range of a TwoThreeTree in key order, following the java.util.concurrent.Flow protocol:
+ * a subscriber receives a Subscription in onSubscribe, and elements are only pushed to it as it requests them.
+ * The elements are read from the tree as demand arrives, so nothing is buffered however large the range is.
+ *
+ * Every subscriber gets its own cursor into the tree. The last element delivered to a subscriber is
+ * available as RangeSubscription.position(), and resumeAfter(position) publishes the rest of the range from
+ * there, starting with an O(log n) descent instead of rescanning the elements already delivered.
+ *
+ * The tree must not be modified while a subscription is active. To stream a range of a tree that
+ * is being modified, cancel the subscription, apply the modification, and resume after the saved position.
+ *
+ * A cancelled or finished subscription drops its references to the tree, the cursor and the subscriber,
+ * so holding on to it does not keep the tree alive.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class RangePublisher<T extends Comparable> implements Flow.Publisher<T> {
+
+    private final TwoThreeTree<T> tree;
+    private final T fromElement;
+    private final boolean fromInclusive;
+    private final T toElement;
+
+
+    RangePublisher(TwoThreeTree<T> tree, T fromElement, boolean fromInclusive, T toElement) {
+        this.tree = tree;
+        this.fromElement = fromElement;
+        this.fromInclusive = fromInclusive;
+        this.toElement = toElement;
+    }
+
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        RangeSubscription<T> subscription = new RangeSubscription<T>(subscriber,
+                tree.rangeIterator(fromElement, fromInclusive, toElement));
+        subscriber.onSubscribe(subscription);
+        // Complete an empty range right away.
+        subscription.drain();
+    }
+
+
+    /**
+     * Returns a publisher of the elements of this range that come after the position.
+     */
+    public RangePublisher<T> resumeAfter(T position) {
+        if (position == null)
+            return this;
+        return new RangePublisher<T>(tree, position, false, toElement);
+    }
+
+
+    public static final class RangeSubscription<T> implements Flow.Subscription {
+        // Both are dropped once the subscription is cancelled or done.
+        private Flow.Subscriber<? super T> subscriber;
+        private Iterator<T> cursor;
+        private volatile T position;
+
+        private final AtomicLong requested = new AtomicLong();
+        // Number of drain requests that came in while one was running. Only the thread that
+        // moves it from 0 delivers elements, so the subscriber is never called concurrently.
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        // Set by an invalid request, and signalled by drain() like any other signal.
+        private volatile Throwable error;
+        private boolean done;
+
+        RangeSubscription(Flow.Subscriber<? super T> subscriber, Iterator<T> cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        /**
+         * The last element delivered to the subscriber, or null if there was none yet.
+         */
+        public T position() {
+            return position;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request: " + n);
+                drain();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            // Lets the draining thread release the references, which it may still be using.
+            drain();
+        }
+
+        void drain() {
+            if (pending.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            do {
+                if (!done && !cancelled && error != null) {
+                    done = true;
+                    subscriber.onError(error);
+                } else if (!done && !cancelled) {
+                    try {
+                        emit();
+                    } catch (RuntimeException e) {
+                        done = true;
+                        subscriber.onError(e);
+                    }
+                }
+                if (done || cancelled) {
+                    subscriber = null;
+                    cursor = null;
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            long demand = requested.get();
+            long emitted = 0;
+            while (emitted < demand && !cancelled && error == null && cursor.hasNext()) {
+                T value = cursor.next();
+                position = value;
+                subscriber.onNext(value);
+                emitted++;
+            }
+            requested.addAndGet(-emitted);
+            if (!cancelled && error == null && !cursor.hasNext()) {
+                done = true;
+                subscriber.onComplete();
+            }
+        }
+    }
+}
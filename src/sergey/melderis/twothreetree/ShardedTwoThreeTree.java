@@ -0,0 +1,521 @@
+/**
+ * A concurrent sorted set that splits the key space into contiguous ranges (shards). Each shard is
+ * backed by its own TwoThreeTree and guarded by its own read-write lock, so writers working on
+ * different ranges proceed in parallel.
+ *
+ * The shard directory is an array that is never modified: splitting a shard that grew too large or is
+ * hot, and merging two neighbouring shards that became small, publish a new array. Ordinary operations
+ * read the array without locking, lock only the shard they touch, and start over if that shard was
+ * retired by a split or merge while they waited for its lock. Splits and merges hold the locks of the
+ * shards they replace and rebuild the new shards from sorted arrays in O(n), without comparisons.
+ * Sizes and write counts are kept per shard, so operations on different shards share no counters.
+ *
+ * A shard is hot when, within the current window of HOT_WINDOW_MILLIS, it receives more than maxShardSize
+ * writes and more than HOT_FACTOR times the average number of writes per shard. Writes spread evenly over
+ * the key space therefore do not split anything. Only shards at least half full are split for being hot,
+ * so the halves are not small enough to be merged right back.
+ *
+ * Iteration is weakly consistent: elements are copied in chunks of up to CHUNK_SIZE under the read lock of
+ * their shard, each chunk starting after the last element returned. It never throws
+ * ConcurrentModificationException and never returns an element twice.
+ */
+
+
+package sergey.melderis.twothreetree;
+
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+@SuppressWarnings("unchecked")
+public class ShardedTwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T> {
+
+    public static final int DEFAULT_MAX_SHARD_SIZE = 1 << 16;
+    public static final long HOT_WINDOW_MILLIS = 1000;
+    public static final int HOT_FACTOR = 4;
+
+    static final int CHUNK_SIZE = 256;
+
+    private static final long HOT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(HOT_WINDOW_MILLIS);
+
+
+    /**
+     * Counts events in the current window. All counters of a set share the window boundaries, so their
+     * counts can be compared. The count is restarted by the first event of a window; racing events may
+     * lose a few counts.
+     */
+    private static final class WindowCounter {
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile long window;
+
+        // Returns the count in the window, including this event.
+        int increment(long now) {
+            if (now != window) {
+                window = now;
+                count.set(0);
+            }
+            return count.incrementAndGet();
+        }
+
+        int get(long now) {
+            return now == window ? count.get() : 0;
+        }
+    }
+
+
+    private static final class Shard<T extends Comparable> {
+        // Inclusive lower bound of the range. The first shard has no lower bound.
+        final T lowerBound;
+        final TwoThreeTree<T> tree;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // Writes in the current window, used to detect hot ranges.
+        final WindowCounter writes = new WindowCounter();
+        // Size of the tree, written under the write lock and read without it.
+        volatile int size;
+        // Set, under the write lock, when a split or merge replaced the shard in the directory.
+        volatile boolean retired;
+
+        Shard(T lowerBound, TwoThreeTree<T> tree) {
+            this.lowerBound = lowerBound;
+            this.tree = tree;
+            this.size = tree.size();
+        }
+    }
+
+
+    private final int maxShardSize;
+    private volatile Shard<T>[] shards;
+    // Serializes the splits and merges, which replace the directory.
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+
+    public ShardedTwoThreeTree() {
+        this(DEFAULT_MAX_SHARD_SIZE);
+    }
+
+    /**
+     * @param maxShardSize a shard holding more elements than this, or receiving more writes than this
+     *                     within HOT_WINDOW_MILLIS, is split in two.
+     */
+    public ShardedTwoThreeTree(int maxShardSize) {
+        if (maxShardSize < 2)
+            throw new IllegalArgumentException("maxShardSize must be at least 2: " + maxShardSize);
+        this.maxShardSize = maxShardSize;
+        this.shards = new Shard[] {new Shard<T>(null, new TwoThreeTree<T>())};
+    }
+
+
+    /**
+     * The current window for counting writes. Tests override it to control the windows.
+     */
+    long window() {
+        return System.nanoTime() / HOT_WINDOW_NANOS;
+    }
+
+
+    public boolean add(T value) {
+        if (value == null)
+            throw new NullPointerException();
+        Shard<T> shard = lockShard(value);
+        boolean added;
+        try {
+            added = shard.tree.add(value);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (recordWrite(shard))
+            rebalance(shard);
+        return added;
+    }
+
+
+    public boolean contains(T value) {
+        if (value == null)
+            return false;
+        while (true) {
+            Shard<T> shard = shardFor(shards, value);
+            shard.lock.readLock().lock();
+            try {
+                if (!shard.retired)
+                    return shard.tree.contains(value);
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+    }
+
+
+    public boolean remove(T value) {
+        if (value == null)
+            return false;
+        Shard<T> shard = lockShard(value);
+        boolean removed;
+        try {
+            removed = shard.tree.remove(value);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (removed) {
+            // Sizes are read without locks here, the decision is repeated under the rebalance lock.
+            Shard<T>[] current = shards;
+            if (recordWrite(shard) || mergeNeighbour(current, indexOf(current, shard)) >= 0)
+                rebalance(shard);
+        }
+        return removed;
+    }
+
+
+    // Returns the live shard for the value with its write lock held.
+    private Shard<T> lockShard(T value) {
+        while (true) {
+            Shard<T> shard = shardFor(shards, value);
+            shard.lock.writeLock().lock();
+            if (!shard.retired)
+                return shard;
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns the shard whose range contains the value: the last shard with lower bound <= value.
+     */
+    private static <T extends Comparable> Shard<T> shardFor(Shard<T>[] shards, T value) {
+        return shards[shardIndex(shards, value)];
+    }
+
+
+    private static <T extends Comparable> int shardIndex(Shard<T>[] shards, T value) {
+        int low = 1;
+        int high = shards.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (value.compareTo(shards[mid].lowerBound) < 0)
+                high = mid - 1;
+            else
+                low = mid + 1;
+        }
+        return low - 1;
+    }
+
+
+    // Returns the position of the shard in the directory, or -1 if it has been replaced.
+    private static <T extends Comparable> int indexOf(Shard<T>[] shards, Shard<T> shard) {
+        int index = shard.lowerBound == null ? 0 : shardIndex(shards, shard.lowerBound);
+        return shards[index] == shard ? index : -1;
+    }
+
+
+    /**
+     * Counts a write to the shard, and returns true if the shard should be split. Hotness is compared with
+     * the writes to all shards only when the shard's count passes a multiple of maxShardSize, so the sum
+     * over the shards costs O(1) per write amortized.
+     */
+    private boolean recordWrite(Shard<T> shard) {
+        int size = shard.size;
+        if (size > maxShardSize)
+            return true;
+        int shardWrites = shard.writes.increment(window());
+        return size >= maxShardSize / 2 && shardWrites % maxShardSize == 0 && isHot(shard);
+    }
+
+
+    // True if the shard should be split.
+    private boolean isHot(Shard<T> shard) {
+        int shardSize = shard.size;
+        if (shardSize > maxShardSize)
+            return true;
+        if (shardSize < maxShardSize / 2)
+            return false;
+        long now = window();
+        int shardWrites = shard.writes.get(now);
+        if (shardWrites <= maxShardSize)
+            return false;
+        Shard<T>[] current = shards;
+        long writes = 0;
+        for (Shard<T> s : current) {
+            writes += s.writes.get(now);
+        }
+        return (long) shardWrites * current.length > HOT_FACTOR * writes;
+    }
+
+
+    /**
+     * Returns the index of a neighbour the shard at index can be merged with, or -1 if the shard
+     * is not small enough.
+     */
+    private int mergeNeighbour(Shard<T>[] current, int index) {
+        if (index < 0)
+            return -1;
+        int shardSize = current[index].size;
+        if (index + 1 < current.length && shardSize + current[index + 1].size < maxShardSize / 4)
+            return index + 1;
+        if (index > 0 && shardSize + current[index - 1].size < maxShardSize / 4)
+            return index - 1;
+        return -1;
+    }
+
+
+    /**
+     * Splits the shard if it is too large or hot, or merges it with a neighbour if both are small.
+     * The shard may have been replaced by a concurrent rebalance, in which case nothing is done.
+     */
+    private void rebalance(Shard<T> shard) {
+        rebalanceLock.lock();
+        try {
+            Shard<T>[] current = shards;
+            int index = indexOf(current, shard);
+            if (index < 0)
+                return;
+
+            if (isHot(shard)) {
+                split(current, index);
+                return;
+            }
+
+            int neighbour = mergeNeighbour(current, index);
+            if (neighbour >= 0)
+                merge(current, Math.min(index, neighbour));
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+
+    // Must be called with the rebalance lock held.
+    private void split(Shard<T>[] current, int index) {
+        Shard<T> shard = current[index];
+        shard.lock.writeLock().lock();
+        try {
+            Object[] values = shard.tree.toArray();
+            if (values.length < 2)
+                return;
+            int mid = values.length / 2;
+            Shard<T> left = new Shard<T>(shard.lowerBound, TwoThreeTree.<T>fromSorted(values, 0, mid));
+            Shard<T> right = new Shard<T>((T) values[mid], TwoThreeTree.<T>fromSorted(values, mid, values.length));
+
+            Shard<T>[] result = new Shard[current.length + 1];
+            System.arraycopy(current, 0, result, 0, index);
+            result[index] = left;
+            result[index + 1] = right;
+            System.arraycopy(current, index + 1, result, index + 2, current.length - index - 1);
+            shards = result;
+            shard.retired = true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+
+    // Merges shards at index and index + 1. Must be called with the rebalance lock held.
+    private void merge(Shard<T>[] current, int index) {
+        Shard<T> first = current[index];
+        Shard<T> second = current[index + 1];
+        first.lock.writeLock().lock();
+        second.lock.writeLock().lock();
+        try {
+            Object[] left = first.tree.toArray();
+            Object[] right = second.tree.toArray();
+            Object[] values = Arrays.copyOf(left, left.length + right.length);
+            System.arraycopy(right, 0, values, left.length, right.length);
+            Shard<T> merged = new Shard<T>(first.lowerBound, TwoThreeTree.<T>fromSorted(values, 0, values.length));
+
+            Shard<T>[] result = new Shard[current.length - 1];
+            System.arraycopy(current, 0, result, 0, index);
+            result[index] = merged;
+            System.arraycopy(current, index + 2, result, index + 1, current.length - index - 2);
+            shards = result;
+            first.retired = true;
+            second.retired = true;
+        } finally {
+            second.lock.writeLock().unlock();
+            first.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Number of shards the key space is currently split into.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+
+    // Set operations.
+
+
+    /**
+     * The returning iterator is weakly consistent and does not support remove.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            // Elements greater than the last returned element, from one shard.
+            Object[] chunk = new Object[0];
+            int count;
+            int index;
+            T last;
+            boolean exhausted;
+
+            public boolean hasNext() {
+                if (index < count)
+                    return true;
+                if (exhausted)
+                    return false;
+                fetchChunk();
+                return index < count;
+            }
+
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                last = (T) chunk[index++];
+                return last;
+            }
+
+            // Copies up to CHUNK_SIZE elements after last, from the first shard that has any.
+            private void fetchChunk() {
+                index = 0;
+                count = 0;
+                Shard<T>[] current = shards;
+                int i = last == null ? 0 : shardIndex(current, last);
+                for (; i < current.length && count == 0; i++) {
+                    Shard<T> shard = current[i];
+                    shard.lock.readLock().lock();
+                    try {
+                        if (shard.retired) {
+                            // Start over in the directory that replaced it.
+                            current = shards;
+                            i = (last == null ? 0 : shardIndex(current, last)) - 1;
+                            continue;
+                        }
+                        Iterator<T> values = shard.tree.rangeIterator(last, false, null);
+                        while (count < CHUNK_SIZE && values.hasNext()) {
+                            if (count == chunk.length)
+                                chunk = Arrays.copyOf(chunk, Math.max(16, count * 2));
+                            chunk[count++] = values.next();
+                        }
+                    } finally {
+                        shard.lock.readLock().unlock();
+                    }
+                }
+                if (count == 0)
+                    exhausted = true;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> headSet(T toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public SortedSet<T> tailSet(T fromElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    public T first() {
+        Shard<T>[] current = shards;
+        for (int i = 0; i < current.length; i++) {
+            Shard<T> shard = current[i];
+            shard.lock.readLock().lock();
+            try {
+                if (shard.retired) {
+                    current = shards;
+                    i = -1;
+                } else if (shard.tree.size() > 0) {
+                    return shard.tree.first();
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    public T last() {
+        Shard<T>[] current = shards;
+        for (int i = current.length - 1; i >= 0; i--) {
+            Shard<T> shard = current[i];
+            shard.lock.readLock().lock();
+            try {
+                if (shard.retired) {
+                    current = shards;
+                    i = current.length;
+                } else if (shard.tree.size() > 0) {
+                    return shard.tree.last();
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Sum of the shard sizes, which is exact only while no writes are in progress.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard<T> shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+
+    @Override
+    public boolean contains(Object o) {
+        try {
+            return contains((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        try {
+            return remove((T) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        rebalanceLock.lock();
+        try {
+            Shard<T>[] current = shards;
+            for (Shard<T> shard : current) {
+                shard.lock.writeLock().lock();
+            }
+            shards = new Shard[] {new Shard<T>(null, new TwoThreeTree<T>())};
+            for (Shard<T> shard : current) {
+                shard.retired = true;
+                shard.lock.writeLock().unlock();
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+}
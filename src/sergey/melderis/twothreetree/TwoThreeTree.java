@@ -15,749 +15,1658 @@ package sergey.melderis.twothreetree;
 
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
-class Node<T extends Comparable> {
-    private Node<T> parent;
-    private Node<T> leftChild;
-    private Node<T> rightChild;
-    private Node<T> middleChild;
 
-    // When node is 2-node, leftVal is the values, and rightVal is null.
-    private T leftVal;
-    private T rightVal;
+@SuppressWarnings("unchecked")
+public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T>, Cloneable {
+
+    Node<T> root;
+    int size = 0;
+    // Hash set of the same elements, or null when contains() searches the tree.
+    HashIndex index;
+    // Aggregates cached in the internal nodes, or null.
+    private Monoid<T, Object> monoid;
+    // Normalizer of the prefixes cached in the nodes, or null.
+    private KeyNormalizer<T> normalizer;
+    // Sum of the hash codes of the elements, kept up to date by add and remove. Operations that
+    // remove many elements at once invalidate it instead, and hashCode() recomputes it.
+    private int hashCode;
+    private boolean hashCodeValid = true;
+
+
+    public TwoThreeTree() {
+    }
 
-    private boolean twoNode;
 
+    /**
+     * Creates a tree that keeps the aggregate of every subtree under the monoid, so that aggregate()
+     * can reduce any range of elements in O(log n).
+     */
+    public TwoThreeTree(Monoid<? super T, ?> monoid) {
+        if (monoid == null)
+            throw new NullPointerException();
+        this.monoid = (Monoid<T, Object>) monoid;
+    }
 
-    protected Node() {
 
+    /**
+     * Creates a tree that keeps the normalized prefix of every element next to it in the nodes. add(),
+     * remove() and contains() compare the prefixes first, and call compareTo() only when they are equal,
+     * which saves dereferencing the elements and the virtual call for expensive keys such as strings or
+     * composite keys. Every node takes 20 to 24 more bytes, and every element is normalized whenever it
+     * moves to another node.
+     *
+     * A tree either caches prefixes or aggregates, not both.
+     */
+    public TwoThreeTree(KeyNormalizer<? super T> normalizer) {
+        if (normalizer == null)
+            throw new NullPointerException();
+        this.normalizer = (KeyNormalizer<T>) normalizer;
     }
 
-    public static <T extends Comparable> Node<T> newTwoNode(T value) {
-        Node<T> node = new Node<T>();
-        node.leftVal = value;
-        node.twoNode = true;
-        return node;
+
+    /**
+     * Creates a copy of the tree, with the same monoid, normalizer and hash index.
+     */
+    public TwoThreeTree(TwoThreeTree<T> other) {
+        this(other, null);
     }
 
 
-    public static <T extends Comparable> Node<T> newThreeNode(T leftVal, T rightVal) {
-        Node<T> node = new Node<T>();
-        if (leftVal.compareTo(rightVal) > 0) {
-            node.rightVal = leftVal;
-            node.leftVal = rightVal;
-        } else {
-            node.leftVal = leftVal;
-            node.rightVal = rightVal;
-        }
-        node.twoNode = false;
-        return node;
+    /**
+     * Creates a copy of the tree, copying large subtrees in parallel on the pool if it is not null.
+     *
+     * The nodes are copied as they are, in one pass over the tree: no element is compared, and every node
+     * is allocated once. Cached aggregates are copied with their nodes.
+     */
+    public TwoThreeTree(TwoThreeTree<T> other, ForkJoinPool pool) {
+        monoid = other.monoid;
+        normalizer = other.normalizer;
+        CopyTask<T> copy = new CopyTask<T>(other.root, other.height(), pool != null);
+        root = pool != null && other.height() > CopyTask.THRESHOLD_HEIGHT ? pool.invoke(copy) : copy.compute();
+        size = other.size;
+        if (other.index != null)
+            index = other.index.copy();
+        hashCode = other.hashCode;
+        hashCodeValid = other.hashCodeValid;
     }
 
 
-    public static HoleNode newHole() {
-        return new HoleNode();
+    /**
+     * Returns a copy of the tree of the same class, made the same way as by the copy constructor.
+     */
+    @Override
+    public TwoThreeTree<T> clone() {
+        TwoThreeTree<T> copy;
+        try {
+            copy = (TwoThreeTree<T>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.root = new CopyTask<T>(root, height(), false).compute();
+        if (index != null)
+            copy.index = index.copy();
+        return copy;
     }
 
 
+    /**
+     * Copies the subtree of the given height. The children of subtrees taller than THRESHOLD_HEIGHT
+     * are copied as separate tasks.
+     */
+    private static final class CopyTask<T extends Comparable> extends RecursiveTask<Node<T>> {
+        private static final long serialVersionUID = 1L;
 
+        // A subtree of this height holds at least 2^12 - 1 values.
+        static final int THRESHOLD_HEIGHT = 12;
+
+        private final Node<T> node;
+        private final int height;
+        private final boolean parallel;
+
+        CopyTask(Node<T> node, int height, boolean parallel) {
+            this.node = node;
+            this.height = height;
+            this.parallel = parallel;
+        }
 
-    public void setLeftChild(Node<T> leftChild) {
-        this.leftChild = leftChild;
-        if (leftChild != null)
-            leftChild.setParent(this);
+        @Override
+        protected Node<T> compute() {
+            if (!parallel || height <= THRESHOLD_HEIGHT)
+                return copy(node);
+
+            CopyTask<T> left = new CopyTask<T>(node.leftChild(), height - 1, true);
+            CopyTask<T> right = new CopyTask<T>(node.rightChild(), height - 1, true);
+            if (node.isTwoNode()) {
+                invokeAll(left, right);
+                return node.copy(left.join(), null, right.join());
+            }
+            CopyTask<T> middle = new CopyTask<T>(node.middleChild(), height - 1, true);
+            invokeAll(left, middle, right);
+            return node.copy(left.join(), middle.join(), right.join());
+        }
+
+        private static <T extends Comparable> Node<T> copy(Node<T> node) {
+            if (node == null)
+                return null;
+            if (node.isTerminal())
+                return node.copy(null, null, null);
+            Node<T> middle = node.isThreeNode() ? copy(node.middleChild()) : null;
+            return node.copy(copy(node.leftChild()), middle, copy(node.rightChild()));
+        }
+    }
+
+    /**
+     * Builds a tree from values in any order, with duplicates.
+     */
+    public static <T extends Comparable> TwoThreeTree<T> fromUnsorted(Collection<? extends T> values) {
+        return fromUnsorted(values, null);
     }
 
-    public void removeChildren() {
-        this.leftChild = null;
-        this.rightChild = null;
+
+    /**
+     * Builds a tree from values in any order, with duplicates, using the pool if it is not null.
+     *
+     * Instead of adding the values one by one, they are sorted with a parallel merge sort, duplicates are
+     * dropped, and the tree is built bottom-up, with subtrees built concurrently and then linked under their
+     * parents. Nothing is compared after the sort, and every node is allocated once, in its final shape.
+     */
+    public static <T extends Comparable> TwoThreeTree<T> fromUnsorted(Collection<? extends T> values, ForkJoinPool pool) {
+        Object[] sorted = values.toArray();
+        if (pool != null && sorted.length > SortTask.THRESHOLD)
+            pool.invoke(new SortTask(sorted, new Object[sorted.length], 0, sorted.length));
+        else
+            Arrays.sort(sorted);
+
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || ((T) sorted[count - 1]).compareTo(sorted[i]) != 0)
+                sorted[count++] = sorted[i];
+        }
+
+        TwoThreeTree<T> tree = new TwoThreeTree<T>();
+        BuildTask<T> build = new BuildTask<T>(tree, sorted, 0, count, heightFor(count), pool != null);
+        tree.root = pool != null && count > BuildTask.THRESHOLD ? pool.invoke(build) : build.compute();
+        tree.size = count;
+        tree.hashCodeValid = false;
+        return tree;
     }
 
 
-    public void setRightChild(Node<T> rightChild) {
-        this.rightChild = rightChild;
-        if (rightChild != null)
-            rightChild.setParent(this);
+    private static final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Ranges this small are sorted by one thread.
+        static final int THRESHOLD = 1 << 13;
+
+        private final Object[] values;
+        private final Object[] buffer;
+        private final int from;
+        private final int to;
+
+        SortTask(Object[] values, Object[] buffer, int from, int to) {
+            this.values = values;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                Arrays.sort(values, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(values, buffer, from, mid), new SortTask(values, buffer, mid, to));
+
+            // Merge the sorted halves through the buffer.
+            int left = from;
+            int right = mid;
+            int out = from;
+            while (left < mid && right < to) {
+                buffer[out++] = ((Comparable) values[left]).compareTo(values[right]) <= 0 ? values[left++] : values[right++];
+            }
+            System.arraycopy(values, left, buffer, out, mid - left);
+            out += mid - left;
+            System.arraycopy(values, right, buffer, out, to - right);
+            System.arraycopy(buffer, from, values, from, to - from);
+        }
     }
 
-    public void setMiddleChild(Node<T> middleChild) {
-        assert isThreeNode();
-        this.middleChild = middleChild;
-        if (middleChild != null) {
-            middleChild.setParent(this);
+
+    /**
+     * Builds the subtree of the given height holding values from..to, like build(), but builds the children
+     * of large subtrees as separate tasks.
+     */
+    private static final class BuildTask<T extends Comparable> extends RecursiveTask<Node<T>> {
+        private static final long serialVersionUID = 1L;
+
+        // Subtrees with fewer values are built by one thread.
+        static final int THRESHOLD = 1 << 14;
+
+        private final TwoThreeTree<T> tree;
+        private final Object[] values;
+        private final int from;
+        private final int to;
+        private final int height;
+        private final boolean parallel;
+
+        BuildTask(TwoThreeTree<T> tree, Object[] values, int from, int to, int height, boolean parallel) {
+            this.tree = tree;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.height = height;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected Node<T> compute() {
+            int n = to - from;
+            if (!parallel || n <= THRESHOLD)
+                return tree.build(values, from, to, height);
+
+            if (n <= 2 * maxValues(height - 1) + 1) {
+                int left = from + (n - 1) / 2;
+                BuildTask<T> leftTask = new BuildTask<T>(tree, values, from, left, height - 1, true);
+                BuildTask<T> rightTask = new BuildTask<T>(tree, values, left + 1, to, height - 1, true);
+                invokeAll(leftTask, rightTask);
+                return tree.newNode((T) values[left], leftTask.join(), rightTask.join());
+            }
+
+            int child = (n - 2) / 3;
+            int remainder = (n - 2) % 3;
+            int left = from + child + (remainder > 0 ? 1 : 0);
+            int middle = left + 1 + child + (remainder > 1 ? 1 : 0);
+            BuildTask<T> leftTask = new BuildTask<T>(tree, values, from, left, height - 1, true);
+            BuildTask<T> middleTask = new BuildTask<T>(tree, values, left + 1, middle, height - 1, true);
+            BuildTask<T> rightTask = new BuildTask<T>(tree, values, middle + 1, to, height - 1, true);
+            invokeAll(leftTask, middleTask, rightTask);
+            return tree.newNode((T) values[left], (T) values[middle],
+                    leftTask.join(), middleTask.join(), rightTask.join());
         }
     }
 
 
-    public final Node<T> parent() {
-        return parent;
+    public boolean add(T value) {
+        if (root == null)
+            root = newNode(value, null, null);
+        else {
+            try {
+                grow(insert(value, prefix(value), root));
+            } catch (DuplicateException e) {
+                return false;
+            }
+        }
+        added(value);
+        return true;
     }
 
-    public final void setParent(Node<T> parent) {
-        this.parent = parent;
+
+    // Puts a new root on top of the tree if insert() split the old one.
+    void grow(Node<T> sibling) {
+        if (sibling != null)
+            root = newNode(promoted, root, sibling);
+        // Does not keep the value alive after it is removed.
+        promoted = null;
     }
 
 
-    public boolean isTerminal() {
-        return leftChild == null && rightChild == null;
+    // Accounts for a value that was added to the nodes.
+    void added(T value) {
+        if (index != null)
+            index.add(value);
+        hashCode += value.hashCode();
+        size ++;
     }
 
 
-    public T val() {
-        assert isTwoNode();
-        return leftVal;
+    public boolean contains(T value) {
+        if (index != null)
+            return index.contains(value);
+        return findNode(root, value, prefix(value)) != null;
     }
-    
 
-    public T leftVal() {
-        assert isThreeNode();
-        return leftVal;
+
+    /**
+     * Turns the hash index on or off. While it is on, the elements are also kept in an open-addressing
+     * hash set, and contains() is answered by it in O(1) instead of searching the tree. Adds and removes
+     * update both structures, and ordered operations still use the tree only.
+     *
+     * The index costs 8 to 16 bytes per element with compressed references. The elements' equals and
+     * hashCode must be consistent with compareTo.
+     */
+    public void setHashIndexed(boolean indexed) {
+        if (!indexed)
+            index = null;
+        else if (index == null)
+            index = newIndex(toArray(), size);
     }
 
-    public void setVal(T val) {
-        assert isTwoNode();
-        leftVal = val;
+
+    public boolean isHashIndexed() {
+        return index != null;
     }
 
 
-    public T rightVal() {
-        assert isThreeNode();
-        return rightVal;
+    private static HashIndex newIndex(Object[] values, int count) {
+        HashIndex index = new HashIndex(count);
+        for (int i = 0; i < count; i++) {
+            index.add(values[i]);
+        }
+        return index;
     }
 
-    public void setLeftVal(T leftVal) {
-        assert isThreeNode();
-        this.leftVal = leftVal;
+
+    private Node<T> findNode(Node<T> node, T value, long key) {
+        if (node == null) return null;
+
+        if (node.isThreeNode()) {
+            int leftComp = compareLeft(value, key, node);
+            if (leftComp == 0)
+                return node;
+            if (leftComp < 0)
+                return findNode(node.leftChild(), value, key);
+            int rightComp = compareRight(value, key, node);
+            if (rightComp == 0)
+                return node;
+            if (rightComp < 0) {
+                return findNode(node.middleChild(), value, key);
+            } else {
+                return findNode(node.rightChild(), value, key);
+            }
+        } else {
+            int comp = compareLeft(value, key, node);
+            if (comp == 0)
+                return node;
+            if (comp < 0)
+                return findNode(node.leftChild(), value, key);
+            else
+                return findNode(node.rightChild(), value, key);
+        }
     }
 
-    public void setRightVal(T rightVal) {
-        assert isThreeNode();
-        this.rightVal = rightVal;
+
+    /**
+     * Looks up a batch of keys. Bit i of the result is set if keys[i] is in the set.
+     *
+     * The keys are sorted, and the tree is walked once for the whole batch. At every node the keys are
+     * partitioned among the children with binary searches, so keys that go down the same path share
+     * the descent, and each node is visited at most once per batch. A key that is alone in its subtree
+     * goes down the rest of the way like contains(). Results are written back through the permutation
+     * of the sort, without searching for each key again.
+     *
+     * Unsorted batches of fewer than 256 keys are looked up one key at a time: there the sort costs more
+     * than the shared descent saves. See TwoThreeScaleTest.batchLookup for the cost per key.
+     */
+    public BitSet lookupBatch(T[] keys) {
+        return lookupBatch(keys, null);
     }
 
-    public boolean isTwoNode() {
-       // return rightVal == null;
-        return twoNode;
+
+    /**
+     * Same as lookupBatch(keys), but large batches are split by subtree and looked up in parallel on the pool.
+     */
+    public BitSet lookupBatch(T[] keys, ForkJoinPool pool) {
+        T[] sorted = keys;
+        // Position in keys of each sorted key, or null if keys is sorted already.
+        int[] positions = null;
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1].compareTo(keys[i]) > 0) {
+                if (keys.length < BatchLookup.SORT_THRESHOLD)
+                    return lookupEach(keys);
+                sorted = keys.clone();
+                positions = new int[keys.length];
+                for (int j = 0; j < positions.length; j++) {
+                    positions[j] = j;
+                }
+                sortWithPositions(sorted, positions);
+                break;
+            }
+        }
+
+        boolean[] found = new boolean[sorted.length];
+        BatchLookup<T> lookup = new BatchLookup<T>(root, sorted, 0, sorted.length, found, pool != null);
+        if (pool != null && sorted.length > BatchLookup.PARALLEL_THRESHOLD)
+            pool.invoke(lookup);
+        else
+            lookup.compute();
+
+        BitSet result = new BitSet(keys.length);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i])
+                result.set(positions == null ? i : positions[i]);
+        }
+        return result;
     }
 
-    public boolean isThreeNode() {
-        return !isTwoNode();
+
+    private BitSet lookupEach(T[] keys) {
+        BitSet result = new BitSet(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (BatchLookup.contains(root, keys[i]))
+                result.set(i);
+        }
+        return result;
     }
 
-    public Node<T> leftChild() {
-        return leftChild;
+
+    /**
+     * Sorts the keys and applies the same permutation to positions, so that the result of each sorted key
+     * can be written straight to its place in the input. A merge sort on the two arrays side by side.
+     */
+    private static <T extends Comparable> void sortWithPositions(T[] keys, int[] positions) {
+        mergeSort(keys.clone(), positions.clone(), keys, positions, 0, keys.length);
     }
 
-    public Node<T> rightChild() {
-        return rightChild;
+
+    // Sorts from..to of srcKeys into dstKeys, with the positions following along. The source and destination
+    // hold the same contents on entry, and their roles swap at each level.
+    private static <T extends Comparable> void mergeSort(T[] srcKeys, int[] srcPositions, T[] dstKeys, int[] dstPositions,
+                                                           int from, int to) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                T key = dstKeys[i];
+                int position = dstPositions[i];
+                int j = i;
+                for (; j > from && dstKeys[j - 1].compareTo(key) > 0; j--) {
+                    dstKeys[j] = dstKeys[j - 1];
+                    dstPositions[j] = dstPositions[j - 1];
+                }
+                dstKeys[j] = key;
+                dstPositions[j] = position;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dstKeys, dstPositions, srcKeys, srcPositions, from, mid);
+        mergeSort(dstKeys, dstPositions, srcKeys, srcPositions, mid, to);
+        if (srcKeys[mid - 1].compareTo(srcKeys[mid]) <= 0) {
+            System.arraycopy(srcKeys, from, dstKeys, from, to - from);
+            System.arraycopy(srcPositions, from, dstPositions, from, to - from);
+            return;
+        }
+        for (int i = from, left = from, right = mid; i < to; i++) {
+            if (right >= to || left < mid && srcKeys[left].compareTo(srcKeys[right]) <= 0) {
+                dstKeys[i] = srcKeys[left];
+                dstPositions[i] = srcPositions[left++];
+            } else {
+                dstKeys[i] = srcKeys[right];
+                dstPositions[i] = srcPositions[right++];
+            }
+        }
     }
 
-    public Node<T> middleChild() {
-        assert isThreeNode();
-        return middleChild;
+
+    /**
+     * Returns true if all the keys are in the set. Looks them up as one batch.
+     */
+    public boolean containsAll(T[] keys) {
+        return lookupBatch(keys).cardinality() == keys.length;
     }
 
-    @SuppressWarnings("unchecked")
-    public void replaceChild(Node currentChild, Node newChild) {
-        if (currentChild == leftChild) {
-            leftChild = newChild;
-        } else if (currentChild == rightChild) {
-            rightChild = newChild;
-        } else {
-            assert  middleChild == currentChild;
-            middleChild = newChild;
+
+    private static final class BatchLookup<T extends Comparable> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Smaller batches are not worth a task.
+        static final int PARALLEL_THRESHOLD = 4096;
+        // Smaller unsorted batches are looked up key by key, sorting them costs more than the shared descent saves.
+        static final int SORT_THRESHOLD = 256;
+
+        private final Node<T> node;
+        private final T[] keys;
+        private final int from;
+        private final int to;
+        private final boolean[] found;
+        private final boolean parallel;
+
+        BatchLookup(Node<T> node, T[] keys, int from, int to, boolean[] found, boolean parallel) {
+            this.node = node;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.found = found;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected void compute() {
+            if (parallel && to - from > PARALLEL_THRESHOLD && node != null && !node.isTerminal()) {
+                List<BatchLookup<T>> tasks = new ArrayList<BatchLookup<T>>(3);
+                lookup(node, from, to, tasks);
+                invokeAll(tasks);
+            } else {
+                lookup(node, from, to, null);
+            }
+        }
+
+        /**
+         * Marks the keys from..to found in the node and passes the rest on to the children, either directly
+         * or, when tasks is not null, as tasks.
+         */
+        private void lookup(Node<T> node, int from, int to, List<BatchLookup<T>> tasks) {
+            if (node == null || from == to)
+                return;
+            if (to - from == 1) {
+                found[from] = contains(node, keys[from]);
+                return;
+            }
+
+            if (node.isTwoNode()) {
+                int low = lowerBound(from, to, node.val());
+                int high = skipEqual(low, to, node.val());
+                descend(node.leftChild(), from, low, tasks);
+                descend(node.rightChild(), high, to, tasks);
+            } else {
+                int lowLeft = lowerBound(from, to, node.leftVal());
+                int highLeft = skipEqual(lowLeft, to, node.leftVal());
+                int lowRight = lowerBound(highLeft, to, node.rightVal());
+                int highRight = skipEqual(lowRight, to, node.rightVal());
+                descend(node.leftChild(), from, lowLeft, tasks);
+                descend(node.middleChild(), highLeft, lowRight, tasks);
+                descend(node.rightChild(), highRight, to, tasks);
+            }
+        }
+
+        private void descend(Node<T> child, int from, int to, List<BatchLookup<T>> tasks) {
+            if (tasks != null)
+                tasks.add(new BatchLookup<T>(child, keys, from, to, found, parallel));
+            else
+                lookup(child, from, to, null);
+        }
+
+        // A single key goes down like contains(), without partitioning.
+        private static <T extends Comparable> boolean contains(Node<T> node, T key) {
+            while (node != null) {
+                int comp = key.compareTo(node.leftVal);
+                if (comp == 0)
+                    return true;
+                if (comp < 0) {
+                    node = node.leftChild();
+                } else if (node.isTwoNode()) {
+                    node = node.rightChild();
+                } else {
+                    comp = key.compareTo(node.rightVal);
+                    if (comp == 0)
+                        return true;
+                    node = comp < 0 ? node.middleChild() : node.rightChild();
+                }
+            }
+            return false;
+        }
+
+        // Index of the first key in from..to that is >= value.
+        private int lowerBound(int from, int to, T value) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(value) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        // Marks the keys equal to value starting at from as found, and returns the index after them.
+        private int skipEqual(int from, int to, T value) {
+            while (from < to && keys[from].compareTo(value) == 0) {
+                found[from++] = true;
+            }
+            return from;
         }
-        newChild.setParent(this);
-        currentChild.setParent(null);
     }
-}
 
 
-/**
- * A hole node does not have any values, and have only one child.
- */
-final class HoleNode<T extends Comparable> extends Node {
-    private Node<T> child;
+    static final class DuplicateException extends RuntimeException {};
+    static final DuplicateException DUPLICATE = new DuplicateException();
+
+    // The value between the two halves of the node split by the last call to insert().
+    private T promoted;
+
+
+    /**
+     * Inserts the value into the subtree. Returns null if the subtree took the value in without growing.
+     * Otherwise its root was split in two: the root keeps the smaller half and the returned node is the
+     * larger half, a new node, with the value that goes between them left in promoted. The caller adds
+     * that value and the new node to its own node. So a split allocates one node. key is the prefix of the value.
+     */
+    private Node<T> insert(T value, long key, Node<T> node) throws DuplicateException {
+        int comp = compareLeft(value, key, node);
+        if (comp == 0)
+            throw DUPLICATE;
+        int child = LEFT;
+        if (comp > 0 && node.isTwoNode()) {
+            child = RIGHT;
+        } else if (comp > 0) {
+            comp = compareRight(value, key, node);
+            if (comp == 0)
+                throw DUPLICATE;
+            child = comp < 0 ? MIDDLE : RIGHT;
+        }
 
-    HoleNode() {
-        super();
+        if (node.isTerminal())
+            return insertTerminal(node, child, value);
+        return absorb(node, child, insert(value, key, child(node, child)));
     }
 
-    public boolean isTwoNode() {
-        return false;
+
+    /**
+     * Puts the value into the terminal node, at the place of the child it would go to if the node had
+     * children. Returns the new node if the node was split, see insert().
+     */
+    Node<T> insertTerminal(Node<T> node, int child, T value) {
+        T leftVal = node.leftVal;
+        T rightVal = node.rightVal;
+        if (node.isTwoNode()) {
+            if (child == LEFT)
+                node.makeThreeNode(value, leftVal);
+            else
+                node.makeThreeNode(leftVal, value);
+            return null;
+        }
+
+        // The node keeps the smallest of the three values, and a new terminal node the largest.
+        if (child == LEFT) {
+            node.makeTwoNode(value);
+            promoted = leftVal;
+            return newNode(rightVal, null, null);
+        }
+        node.makeTwoNode(leftVal);
+        if (child == MIDDLE) {
+            promoted = value;
+            return newNode(rightVal, null, null);
+        }
+        promoted = rightVal;
+        return newNode(value, null, null);
     }
 
-    public Node sibling() {
-        if (parent() != null) {
-            return parent().leftChild() == this ? parent().rightChild(): parent().leftChild();
+
+    /**
+     * Completes an insert into the given child of the internal node. If the child was split, adds the
+     * promoted value and the child's new sibling to the node, and returns the new node if that splits
+     * the node in turn, see insert().
+     */
+    Node<T> absorb(Node<T> node, int child, Node<T> sibling) {
+        if (sibling == null) {
+            refresh(node);
+            return null;
         }
-        return null;
+
+        T leftVal = node.leftVal;
+        T rightVal = node.rightVal;
+        Node<T> leftChild = node.leftChild();
+        Node<T> rightChild = node.rightChild();
+        if (node.isTwoNode()) {
+            if (child == LEFT) {
+                node.makeThreeNode(promoted, leftVal);
+                setChildren(node, leftChild, sibling, rightChild);
+            } else {
+                node.makeThreeNode(leftVal, promoted);
+                setChildren(node, leftChild, rightChild, sibling);
+            }
+            refresh(node);
+            return null;
+        }
+
+        // The node keeps the two leftmost of the four children, the other two go to the new node.
+        Node<T> middleChild = node.middleChild();
+        if (child == LEFT) {
+            node.makeTwoNode(promoted);
+            setChildren(node, leftChild, null, sibling);
+            refresh(node);
+            promoted = leftVal;
+            return newNode(rightVal, middleChild, rightChild);
+        }
+        node.makeTwoNode(leftVal);
+        setChildren(node, leftChild, null, middleChild);
+        refresh(node);
+        if (child == MIDDLE) {
+            // The value promoted by the middle child goes on up.
+            return newNode(rightVal, sibling, rightChild);
+        }
+        Node<T> right = newNode(promoted, rightChild, sibling);
+        promoted = rightVal;
+        return right;
     }
 
-    @Override
-    public void setLeftChild(Node leftChild) {
+
+    public boolean remove(T value) {
+        if (value == null || root == null)
+            return false;
+        // A miss in the index saves the descent.
+        if (index != null && !index.remove(value))
+            return false;
+        T removed = delete(root, value, prefix(value));
+        if (removed == null)
+            return false;
+        if (root.isHole())
+            root = root.leftChild();
+        hashCode -= removed.hashCode();
+        size--;
+        return true;
     }
 
-    @Override
-    public void removeChildren() {
-        child = null;
+
+    /**
+     * Removes and returns the smallest element, or returns null if the set is empty.
+     * Goes straight down the left spine, without comparisons.
+     */
+    public T pollFirst() {
+        if (root == null)
+            return null;
+        return unlinked(delete(root, null, 0));
     }
 
 
-    @Override
-    public void setRightChild(Node rightChild) {
+    /**
+     * Removes and returns the largest element, or returns null if the set is empty.
+     */
+    public T pollLast() {
+        if (root == null)
+            return null;
+        return unlinked(deleteLast(root));
     }
 
-    public Node<T> child() {
-        return child;
+
+    // Finishes the removal of a value that has been deleted from the tree.
+    private T unlinked(T value) {
+        if (root.isHole())
+            root = root.leftChild();
+        size--;
+        if (index != null)
+            index.remove(value);
+        hashCode -= value.hashCode();
+        return value;
     }
 
-    public void setChild(Node<T> child) {
-        this.child = child;
+
+    /**
+     * Removes the value, whose prefix is key, from the subtree, or the smallest value of the subtree if value
+     * is null. Returns the removed value, or null if the value was not found.
+     *
+     * When a 2-node loses its value it becomes a hole, and the subtree is one level shorter. The parent
+     * repairs the hole on the way back up with fixHole(), which can turn the parent into a hole in turn.
+     */
+    private T delete(Node<T> node, T value, long key) {
+        if (node.isTerminal()) {
+            T leftVal = node.leftVal;
+            if (value == null || compareLeft(value, key, node) == 0) {
+                if (node.isThreeNode())
+                    node.makeTwoNode(node.rightVal);
+                else
+                    node.makeHole(null);
+                return leftVal;
+            }
+            if (node.isThreeNode() && compareRight(value, key, node) == 0) {
+                node.makeTwoNode(leftVal);
+                return value;
+            }
+            return null;
+        }
+
+        T removed;
+        int child;
+        int leftComp = value == null ? -1 : compareLeft(value, key, node);
+        if (leftComp == 0) {
+            // Replace by successor.
+            removed = node.leftVal;
+            child = node.isThreeNode() ? MIDDLE : RIGHT;
+            node.setLeftVal(delete(child(node, child), null, 0));
+        } else if (leftComp < 0) {
+            child = LEFT;
+            removed = delete(node.leftChild(), value, key);
+        } else if (node.isTwoNode()) {
+            child = RIGHT;
+            removed = delete(node.rightChild(), value, key);
+        } else {
+            int rightComp = compareRight(value, key, node);
+            if (rightComp == 0) {
+                removed = node.rightVal;
+                child = RIGHT;
+                node.setRightVal(delete(node.rightChild(), null, 0));
+            } else {
+                child = rightComp < 0 ? MIDDLE : RIGHT;
+                removed = delete(child(node, child), value, key);
+            }
+        }
+
+        if (removed != null) {
+            if (child(node, child).isHole())
+                fixHole(node, child);
+            refresh(node);
+        }
+        return removed;
     }
-}
 
 
-@SuppressWarnings("unchecked")
-public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implements SortedSet<T> {
+    // Removes the largest value of the subtree and returns it.
+    private T deleteLast(Node<T> node) {
+        if (node.isTerminal()) {
+            if (node.isThreeNode()) {
+                T rightVal = node.rightVal;
+                node.makeTwoNode(node.leftVal);
+                return rightVal;
+            }
+            T val = node.leftVal;
+            node.makeHole(null);
+            return val;
+        }
 
-    Node<T> root;
-    int size = 0;
+        T removed = deleteLast(node.rightChild());
+        if (node.rightChild().isHole())
+            fixHole(node, RIGHT);
+        refresh(node);
+        return removed;
+    }
 
-    public boolean add(T value) {
-        if (root == null)
-            root = Node.newTwoNode(value);
-        else {
-            try {
-                Node<T> result = insert(value, root);
-                if (result != null) {
-                    root = result;
-                }
-            } catch (DuplicateException e) {
-                return false;
+
+    /**
+     * Removes first, which must be the smallest element, and returns the smallest of the remaining
+     * elements, or null if none is left. The new smallest element is picked up on the way back from the
+     * removal, so callers that need it do not walk down the spine again.
+     */
+    T evictFirst(T first) {
+        T next = evictFirst(root);
+        unlinked(first);
+        return next;
+    }
+
+
+    /**
+     * Removes last, which must be the largest element, and returns the largest of the remaining elements,
+     * or null if none is left.
+     */
+    T evictLast(T last) {
+        T next = evictLast(root);
+        unlinked(last);
+        return next;
+    }
+
+
+    // Removes the smallest value of the subtree, and returns the new smallest one, or null if the subtree
+    // has no values left. That can only happen to a terminal 2-node, whose parent's value is next then.
+    private T evictFirst(Node<T> node) {
+        if (node.isTerminal()) {
+            if (node.isThreeNode()) {
+                node.makeTwoNode(node.rightVal);
+                return node.leftVal;
             }
+            node.makeHole(null);
+            return null;
         }
-        size ++;
-        return true;
+
+        T next = evictFirst(node.leftChild());
+        // Read before the repair, which can move the value to a child.
+        if (next == null)
+            next = node.leftVal;
+        if (node.leftChild().isHole())
+            fixHole(node, LEFT);
+        refresh(node);
+        return next;
     }
 
 
-    public boolean contains(T value) {
-        return findNode(root, value) != null;
+    // Removes the largest value of the subtree, and returns the new largest one, or null if the subtree
+    // has no values left.
+    private T evictLast(Node<T> node) {
+        if (node.isTerminal()) {
+            if (node.isThreeNode()) {
+                node.makeTwoNode(node.leftVal);
+                return node.leftVal;
+            }
+            node.makeHole(null);
+            return null;
+        }
+
+        T next = evictLast(node.rightChild());
+        if (next == null)
+            next = node.isThreeNode() ? node.rightVal : node.leftVal;
+        if (node.rightChild().isHole())
+            fixHole(node, RIGHT);
+        refresh(node);
+        return next;
     }
 
 
-    private Node<T> findNode(Node<T> node, T value) {
-        if (node == null) return null;
+    static final int LEFT = 0;
+    static final int MIDDLE = 1;
+    static final int RIGHT = 2;
 
-        if (node.isThreeNode()) {
-            int leftComp = value.compareTo(node.leftVal());
-            int rightComp = value.compareTo(node.rightVal());
-            if (leftComp == 0 || rightComp == 0) {
-                return node;
+    static <T extends Comparable> Node<T> child(Node<T> node, int child) {
+        return child == LEFT ? node.leftChild() : child == MIDDLE ? node.middleChild() : node.rightChild();
+    }
+
+
+    // Replaces the children of the node. A terminal node has none, and is only passed null children.
+    private static <T extends Comparable> void setChildren(Node<T> node, Node<T> leftChild, Node<T> middleChild,
+                                                         Node<T> rightChild) {
+        if (node.isTerminal()) {
+            assert leftChild == null && middleChild == null && rightChild == null;
+            return;
+        }
+        ((Internal<T>) node).setChildren(leftChild, middleChild, rightChild);
+    }
+
+
+    /**
+     * Repairs a hole among the children of the parent, by borrowing a value from a sibling or by merging
+     * the hole's child into a sibling. For description of each case see
+     * "2-3 Tree Deletion: Upward Phase" in  http://cs.wellesley.edu/~cs230/spring07/2-3-trees.pdf
+     *
+     * Only case 1 leaves a hole behind: the parent itself, which its own parent repairs next.
+     * No nodes are allocated; the hole is reused whenever a node is needed.
+     */
+    private void fixHole(Node<T> parent, int child) {
+        Node<T> hole = child(parent, child);
+        Node<T> holeChild = hole.leftChild();
+
+        if (parent.isTwoNode()) {
+            T val = parent.leftVal;
+            Node<T> sibling = child == LEFT ? parent.rightChild() : parent.leftChild();
+            // Case 1. The hole has a 2-node as parent and 2-node as sibling.
+            if (sibling.isTwoNode()) {
+                if (child == LEFT) {
+                    sibling.makeThreeNode(val, sibling.leftVal);
+                    setChildren(sibling, holeChild, sibling.leftChild(), sibling.rightChild());
+                } else {
+                    sibling.makeThreeNode(sibling.leftVal, val);
+                    setChildren(sibling, sibling.leftChild(), sibling.rightChild(), holeChild);
+                }
+                parent.makeHole(sibling);
             }
-            if (leftComp < 0) {
-                return findNode(node.leftChild(), value);
-            } else if (rightComp < 0) {
-                return findNode(node.middleChild(), value);
+            // Case 2. The hole has a 2-node as parent and 3-node as sibling.
+            else if (child == LEFT) {
+                Node<T> siblingMiddle = sibling.middleChild();
+                hole.makeTwoNode(val);
+                setChildren(hole, holeChild, null, sibling.leftChild());
+                parent.setVal(sibling.leftVal);
+                sibling.makeTwoNode(sibling.rightVal);
+                setChildren(sibling, siblingMiddle, null, sibling.rightChild());
             } else {
-                return findNode(node.rightChild(), value);
+                Node<T> siblingMiddle = sibling.middleChild();
+                hole.makeTwoNode(val);
+                setChildren(hole, sibling.rightChild(), null, holeChild);
+                parent.setVal(sibling.rightVal);
+                sibling.makeTwoNode(sibling.leftVal);
+                setChildren(sibling, sibling.leftChild(), null, siblingMiddle);
+            }
+            refreshChildren(parent);
+            return;
+        }
+
+        // The parent is a 3-node.
+        T leftVal = parent.leftVal;
+        T rightVal = parent.rightVal;
+        Node<T> left = parent.leftChild();
+        Node<T> middle = parent.middleChild();
+        Node<T> right = parent.rightChild();
+        if (child == MIDDLE) {
+            // Case 3. The left sibling is a 2-node, merge the hole into it.
+            if (left.isTwoNode()) {
+                left.makeThreeNode(left.leftVal, leftVal);
+                setChildren(left, left.leftChild(), left.rightChild(), holeChild);
+                parent.makeTwoNode(rightVal);
+                setChildren(parent, left, null, right);
+            }
+            // Case 3. The right sibling is a 2-node, merge the hole into it.
+            else if (right.isTwoNode()) {
+                right.makeThreeNode(rightVal, right.leftVal);
+                setChildren(right, holeChild, right.leftChild(), right.rightChild());
+                parent.makeTwoNode(leftVal);
+                setChildren(parent, left, null, right);
+            }
+            // Case 4. The left sibling is a 3-node, borrow its right value.
+            else {
+                Node<T> leftMiddle = left.middleChild();
+                hole.makeTwoNode(leftVal);
+                setChildren(hole, left.rightChild(), null, holeChild);
+                parent.setLeftVal(left.rightVal);
+                left.makeTwoNode(left.leftVal);
+                setChildren(left, left.leftChild(), null, leftMiddle);
+            }
+        } else if (child == LEFT) {
+            // Case 3. The middle sibling is a 2-node, merge the hole into it.
+            if (middle.isTwoNode()) {
+                middle.makeThreeNode(leftVal, middle.leftVal);
+                setChildren(middle, holeChild, middle.leftChild(), middle.rightChild());
+                parent.makeTwoNode(rightVal);
+                setChildren(parent, middle, null, right);
+            }
+            // Case 4. The middle sibling is a 3-node, borrow its left value.
+            else {
+                Node<T> middleMiddle = middle.middleChild();
+                hole.makeTwoNode(leftVal);
+                setChildren(hole, holeChild, null, middle.leftChild());
+                parent.setLeftVal(middle.leftVal);
+                middle.makeTwoNode(middle.rightVal);
+                setChildren(middle, middleMiddle, null, middle.rightChild());
             }
         } else {
-            int comp = value.compareTo(node.val());
-            if (comp == 0)
-                return node;
-            if (comp < 0)
-                return findNode(node.leftChild(), value);
-            else
-                return findNode(node.rightChild(), value);
+            // Case 3. The middle sibling is a 2-node, merge the hole into it.
+            if (middle.isTwoNode()) {
+                middle.makeThreeNode(middle.leftVal, rightVal);
+                setChildren(middle, middle.leftChild(), middle.rightChild(), holeChild);
+                parent.makeTwoNode(leftVal);
+                setChildren(parent, left, null, middle);
+            }
+            // Case 4. The middle sibling is a 3-node, borrow its right value.
+            else {
+                Node<T> middleMiddle = middle.middleChild();
+                hole.makeTwoNode(rightVal);
+                setChildren(hole, middle.rightChild(), null, holeChild);
+                parent.setRightVal(middle.rightVal);
+                middle.makeTwoNode(middle.leftVal);
+                setChildren(middle, middle.leftChild(), null, middleMiddle);
+            }
         }
+        refreshChildren(parent);
     }
 
 
-    private static final class DuplicateException extends RuntimeException {};
-    private static final DuplicateException DUPLICATE = new DuplicateException();
+    /**
+     * Removes all elements from fromElement, inclusive, to toElement, exclusive.
+     *
+     * The elements are not removed one by one. The tree is split along the path to fromElement and along
+     * the path to toElement, the middle part is dropped, and the outer parts are joined back together.
+     * Rebalancing only touches the nodes on the two boundary paths, so the cost is O(log n) plus counting
+     * the k removed elements.
+     *
+     * @return number of removed elements.
+     */
+    public int removeRange(T fromElement, T toElement) {
+        if (fromElement.compareTo(toElement) > 0)
+            throw new IllegalArgumentException("fromElement > toElement");
+        return removeRangeFrom(fromElement, toElement);
+    }
 
 
-    private Node<T> insert(T value, Node<T> node) throws DuplicateException {
-        Node<T> returnValue = null;
-        if (node.isTwoNode()) {
-            int comp = value.compareTo(node.val());
+    // toElement == null removes everything from fromElement to the end.
+    private int removeRangeFrom(T fromElement, T toElement) {
+        if (root == null)
+            return 0;
+        Piece<T>[] low = split(root, height(), fromElement);
+        Piece<T>[] high = toElement == null
+                ? new Piece[] {low[1], Piece.EMPTY}
+                : split(low[1].node, low[1].height, toElement);
+        int removed = count(high[0].node);
+        if (index != null) {
+            inorderSearch(high[0].node, new Function<T>() {
+                public void apply(T t) {
+                    index.remove(t);
+                }
+            });
+        }
 
-            if (node.isTerminal()) {
-                if (comp == 0)
-                    throw DUPLICATE;
-                Node<T> thnode = Node.newThreeNode(value, node.val());
-                Node<T> parent = node.parent();
-                if (parent != null)
-                    parent.replaceChild(node, thnode);
-                else
-                    root = thnode;
+        root = concat(low[0], high[1]).node;
+        size -= removed;
+        hashCodeValid = false;
+        return removed;
+    }
+
+
+    /**
+     * Removes all elements accepted by the filter. Matching elements that are next to each other are
+     * removed as one range. If the matches are scattered over so many ranges that removing them one range at
+     * a time would cost more than building the tree again, the tree is rebuilt from the remaining elements
+     * in O(n).
+     *
+     * Named so that it does not overload Collection.removeIf(java.util.function.Predicate) on Java 8 and
+     * later, which would make calls with a lambda ambiguous.
+     *
+     * @return true if any elements were removed.
+     */
+    public boolean removeMatching(Predicate<? super T> filter) {
+        Object[] values = toArray();
+        Object[] survivors = new Object[values.length];
+        int survivorCount = 0;
+        // Start, inclusive, and end, exclusive, of each run of matching elements. A null end is the end of the set.
+        List<Object> runs = new ArrayList<Object>();
+        boolean inRun = false;
+        for (Object value : values) {
+            if (filter.apply((T) value)) {
+                if (!inRun)
+                    runs.add(value);
+                inRun = true;
             } else {
-                if (comp < 0) {
-                    Node<T> result = insert(value, node.leftChild());
-                    if (result != null) {
-                        Node<T> threeNode = Node.newThreeNode(result.val(), node.val());
-                        threeNode.setRightChild(node.rightChild());
-                        threeNode.setMiddleChild(result.rightChild());
-                        threeNode.setLeftChild(result.leftChild());
-                        if (node.parent() != null) {
-                            node.parent().replaceChild(node, threeNode);
-                        } else {
-                            root = threeNode;
-                        }
-                        unlinkNode(node);
-                    }
-                } else if (comp > 0) {
-                    Node<T> result = insert(value, node.rightChild());
-                    if (result != null) {
-                        Node<T> threeNode = Node.newThreeNode(result.val(), node.val());
-                        threeNode.setLeftChild(node.leftChild());
-                        threeNode.setMiddleChild(result.leftChild());
-                        threeNode.setRightChild(result.rightChild());
-                        if (node.parent() != null) {
-                            node.parent().replaceChild(node, threeNode);
-                        } else {
-                            root = threeNode;
-                        }
-                        unlinkNode(node);
-                    }
-                } else {
-                    throw DUPLICATE;
-                }
+                if (inRun)
+                    runs.add(value);
+                inRun = false;
+                survivors[survivorCount++] = value;
             }
+        }
+        if (inRun)
+            runs.add(null);
+        if (runs.isEmpty())
+            return false;
 
-        } else { // three node
-            Node<T> threeNode = node;
-
-            int leftComp = value.compareTo(threeNode.leftVal());
-            int rightComp = value.compareTo(threeNode.rightVal());
-            if (leftComp == 0 || rightComp == 0) {
-                throw DUPLICATE;
+        if ((long) (runs.size() / 2) * height() > survivorCount) {
+            rebuild(survivors, survivorCount);
+        } else {
+            for (int i = 0; i < runs.size(); i += 2) {
+                removeRangeFrom((T) runs.get(i), (T) runs.get(i + 1));
             }
+        }
+        return true;
+    }
 
-            if (threeNode.isTerminal()) {
 
-                returnValue = splitNode(threeNode, value);
+    /**
+     * Builds a tree from values[from, to), which must be sorted and distinct, in O(n) without comparisons.
+     */
+    static <T extends Comparable> TwoThreeTree<T> fromSorted(Object[] values, int from, int to) {
+        TwoThreeTree<T> tree = new TwoThreeTree<T>();
+        tree.root = tree.build(values, from, to, heightFor(to - from));
+        tree.size = to - from;
+        tree.hashCodeValid = false;
+        return tree;
+    }
+
+
+    // Replaces the contents of the tree by the sorted, distinct values.
+    private void rebuild(Object[] values, int count) {
+        root = build(values, 0, count, heightFor(count));
+        size = count;
+        if (index != null)
+            index = newIndex(values, count);
+        hashCodeValid = false;
+    }
+
 
+    /**
+     * Adds values[i] where added[i] is true and removes the other values, for i in [0, count). The values
+     * must be sorted and distinct, the added ones must not be in the set and the removed ones must be.
+     *
+     * The batch goes down the tree in one pass instead of one descent per value. Like in lookupBatch, the
+     * values are partitioned among the children of each node, and subtrees that get none are not visited.
+     * A terminal node is rebuilt with its share of the batch, and on the way back up each node is put
+     * together again from its children, in place if their heights did not change, otherwise with join().
+     * So k values cost O(k log(n / k + 1)) instead of O(k log n).
+     */
+    void applySorted(Object[] values, boolean[] added, int count) {
+        if (count == 0)
+            return;
+        root = apply(root, height(), values, added, 0, count).node;
+        for (int i = 0; i < count; i++) {
+            T value = (T) values[i];
+            if (added[i]) {
+                size++;
+                hashCode += value.hashCode();
+                if (index != null)
+                    index.add(value);
             } else {
-                if (leftComp < 0) {
-                    Node<T> result = insert(value, threeNode.leftChild());
-                    if (result != null) {
-                        returnValue = splitNode(threeNode, result.val());
-                        returnValue.leftChild().setLeftChild(result.leftChild());
-                        returnValue.leftChild().setRightChild(result.rightChild());
-                        returnValue.rightChild().setLeftChild(threeNode.middleChild());
-                        returnValue.rightChild().setRightChild((threeNode.rightChild()));
-                        unlinkNode(threeNode);
-                    }
-                } else if (rightComp < 0) {
-                    Node<T> result = insert(value, threeNode.middleChild());
-                    if (result != null) {
-                        returnValue = splitNode(threeNode, result.val());
-                        returnValue.leftChild().setLeftChild(threeNode.leftChild());
-                        returnValue.leftChild().setRightChild(result.leftChild());
-                        returnValue.rightChild().setLeftChild(result.rightChild());
-                        returnValue.rightChild().setRightChild(threeNode.rightChild());
-                        unlinkNode(threeNode);
-                    }
-                } else  {
-                    Node<T> result = insert(value, threeNode.rightChild());
-                    if (result != null) {
-                        returnValue = splitNode(threeNode, result.val());
-                        returnValue.leftChild().setLeftChild(threeNode.leftChild());
-                        returnValue.leftChild().setRightChild(threeNode.middleChild());
-                        returnValue.rightChild().setLeftChild(result.leftChild());
-                        returnValue.rightChild().setRightChild(result.rightChild());
-                        unlinkNode(threeNode);
-                    }
-                } 
+                size--;
+                hashCode -= value.hashCode();
+                if (index != null)
+                    index.remove(value);
             }
         }
-        return returnValue;
     }
 
 
+    // Applies values[from, to), which all fall into the subtree, and returns the new subtree.
+    private Piece<T> apply(Node<T> node, int height, Object[] values, boolean[] added, int from, int to) {
+        if (from == to)
+            return new Piece<T>(node, height);
+        if (node == null || node.isTerminal())
+            return applyToLeaf(node, values, added, from, to);
 
-    public boolean remove(T value) {
-        if (value == null)
-            return false;
-      //  System.out.println("removing " + value);
-        Node<T> node = findNode(root, value);
-        if (node == null)
-            return false;
+        int h = height - 1;
+        if (node.isTwoNode()) {
+            T val = node.leftVal;
+            int split = lowerBound(values, from, to, val);
+            boolean drop = split < to && val.compareTo(values[split]) == 0;
+            Piece<T> left = apply(node.leftChild(), h, values, added, from, split);
+            Piece<T> right = apply(node.rightChild(), h, values, added, drop ? split + 1 : split, to);
+            if (drop)
+                return concat(left, right);
+            if (left.height == h && right.height == h) {
+                setChildren(node, left.node, null, right.node);
+                refresh(node);
+                return new Piece<T>(node, height);
+            }
+            return join(left, val, right);
+        }
 
-        HoleNode hole = null;
-        Node<T> terminalNode;
-        T holeValue;
-        if (node.isTerminal()) {
-            terminalNode = node;
-            holeValue = value;
-        } else {
-            // Replace by successor.
-            if (node.isThreeNode()) {
-                if (node.leftVal().equals(value)) {
-                    Node<T> pred = predecessor(node, value);
-                    holeValue = pred.isThreeNode() ? pred.rightVal() : pred.val();
-                    node.setLeftVal(holeValue);
-                    terminalNode = pred;
-                } else {
-                    Node<T> succ = successor(node, value);
-                    holeValue = succ.isThreeNode() ? succ.leftVal() : succ.val();
-                    node.setRightVal(holeValue);
-                    terminalNode = succ;
-                }
-            } else {
-                Node<T> succ = successor(node, value);
-                holeValue = succ.isThreeNode() ? succ.leftVal() : succ.val();
-                node.setVal(holeValue);
-                terminalNode = succ;
+        T leftVal = node.leftVal;
+        T rightVal = node.rightVal;
+        int leftSplit = lowerBound(values, from, to, leftVal);
+        boolean dropLeft = leftSplit < to && leftVal.compareTo(values[leftSplit]) == 0;
+        int middleFrom = dropLeft ? leftSplit + 1 : leftSplit;
+        int rightSplit = lowerBound(values, middleFrom, to, rightVal);
+        boolean dropRight = rightSplit < to && rightVal.compareTo(values[rightSplit]) == 0;
+        Piece<T> left = apply(node.leftChild(), h, values, added, from, leftSplit);
+        Piece<T> middle = apply(node.middleChild(), h, values, added, middleFrom, rightSplit);
+        Piece<T> right = apply(node.rightChild(), h, values, added, dropRight ? rightSplit + 1 : rightSplit, to);
+        if (!dropLeft && !dropRight && left.height == h && middle.height == h && right.height == h) {
+            setChildren(node, left.node, middle.node, right.node);
+            refresh(node);
+            return new Piece<T>(node, height);
+        }
+        Piece<T> joined = dropLeft ? concat(left, middle) : join(left, leftVal, middle);
+        return dropRight ? concat(joined, right) : join(joined, rightVal, right);
+    }
+
+
+    // Merges values[from, to) into the values of the terminal node, or of the empty tree if it is null.
+    private Piece<T> applyToLeaf(Node<T> leaf, Object[] values, boolean[] added, int from, int to) {
+        Object[] merged = new Object[to - from + 2];
+        int count = 0;
+        int i = from;
+        int leafValues = leaf == null ? 0 : leaf.isThreeNode() ? 2 : 1;
+        for (int j = 0; j < leafValues; j++) {
+            T value = j == 0 ? leaf.leftVal : leaf.rightVal;
+            for (; i < to && ((T) values[i]).compareTo(value) < 0; i++) {
+                if (added[i])
+                    merged[count++] = values[i];
             }
+            // An entry equal to a value of the set removes it.
+            if (i < to && ((T) values[i]).compareTo(value) == 0)
+                i++;
+            else
+                merged[count++] = value;
+        }
+        for (; i < to; i++) {
+            if (added[i])
+                merged[count++] = values[i];
+        }
+        int height = heightFor(count);
+        return new Piece<T>(build(merged, 0, count, height), height);
+    }
+
+
+    // Index of the first of values[from, to) that is >= value.
+    private static <T extends Comparable> int lowerBound(Object[] values, int from, int to, T value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (((T) values[mid]).compareTo(value) < 0)
+                low = mid + 1;
+            else
+                high = mid;
         }
+        return low;
+    }
+
+
+    /**
+     * A subtree together with its height, used while splitting and joining trees. The empty tree has height 0.
+     */
+    private static final class Piece<T extends Comparable> {
+        static final Piece EMPTY = new Piece(null, 0);
 
-        assert terminalNode.isTerminal();
+        final Node<T> node;
+        final int height;
 
-        if (terminalNode.isThreeNode()) {
-            // Easy case. Replace 3-node by 2-node
-            T val = terminalNode.leftVal().equals(holeValue) ? terminalNode.rightVal() : terminalNode.leftVal();
-            Node<T> twoNode = Node.newTwoNode(val);
-            if (terminalNode.parent() != null) {
-                terminalNode.parent().replaceChild(terminalNode, twoNode);
+        Piece(Node<T> node, int height) {
+            this.node = node;
+            this.height = height;
+        }
+    }
+
+
+    /**
+     * Splits the subtree into the values less than key, returned first, and the values greater than or
+     * equal to key. The subtree is taken apart in the process.
+     */
+    private Piece<T>[] split(Node<T> node, int height, T key) {
+        if (node == null)
+            return new Piece[] {Piece.EMPTY, Piece.EMPTY};
+
+        int h = height - 1;
+        Piece<T> left = new Piece<T>(node.leftChild(), h);
+        Piece<T> right = new Piece<T>(node.rightChild(), h);
+        Piece<T>[] parts;
+        if (node.isTwoNode()) {
+            T val = node.val();
+            if (key.compareTo(val) <= 0) {
+                parts = split(left.node, h, key);
+                parts[1] = join(parts[1], val, right);
             } else {
-                root = twoNode;
+                parts = split(right.node, h, key);
+                parts[0] = join(left, val, parts[0]);
             }
         } else {
-            if (terminalNode.parent() != null) {
-                hole = Node.newHole();
-                terminalNode.parent().replaceChild(terminalNode, hole);
+            T leftVal = node.leftVal();
+            T rightVal = node.rightVal();
+            Piece<T> middle = new Piece<T>(node.middleChild(), h);
+            if (key.compareTo(leftVal) <= 0) {
+                parts = split(left.node, h, key);
+                parts[1] = join(join(parts[1], leftVal, middle), rightVal, right);
+            } else if (key.compareTo(rightVal) <= 0) {
+                parts = split(middle.node, h, key);
+                parts[0] = join(left, leftVal, parts[0]);
+                parts[1] = join(parts[1], rightVal, right);
             } else {
-                root = null;
+                parts = split(right.node, h, key);
+                parts[0] = join(join(left, leftVal, middle), rightVal, parts[0]);
             }
         }
+        return parts;
+    }
 
-        // For description of each case see
-        // "2-3 Tree Deletion: Upward Phase" in  http://cs.wellesley.edu/~cs230/spring07/2-3-trees.pdf
-        while (hole != null) {
-            // Case 1. The hole has a 2-node as parent and 2-node as sibling.
-            if (hole.parent().isTwoNode() && hole.sibling().isTwoNode()) {
-                //System.out.println("Case 1");
-                Node<T> parent = hole.parent();
-                Node<T> sibling = hole.sibling();
-
-                Node<T> threeNode = Node.newThreeNode(parent.val(), sibling.val());
-                if (parent.leftChild() == hole) {
-                    threeNode.setLeftChild(hole.child());
-                    threeNode.setMiddleChild(sibling.leftChild());
-                    threeNode.setRightChild(sibling.rightChild());
-                } else {
-                    threeNode.setLeftChild(sibling.leftChild());
-                    threeNode.setMiddleChild(sibling.rightChild());
-                    threeNode.setRightChild(hole.child());
-                }
 
-                if (parent.parent() == null) {
-                    unlinkNode(hole);
-                    root = threeNode;
-                    hole = null;
-                } else {
-                    hole.setChild(threeNode);
-                    parent.parent().replaceChild(parent, hole);
-                }
-                unlinkNode(parent);
-                unlinkNode(sibling);
+    /**
+     * Joins two trees and a key. All values of left must be less than key, and all values of right
+     * greater than key. The shorter tree is attached to the spine of the taller one at its own height.
+     * Costs O(difference of heights + 1).
+     */
+    private Piece<T> join(Piece<T> left, T key, Piece<T> right) {
+        if (left.height == right.height)
+            return new Piece<T>(newNode(key, left.node, right.node), left.height + 1);
+        else if (left.height > right.height)
+            return joinRight(left.node, left.height, key, right);
+        else
+            return joinLeft(right.node, right.height, key, left);
+    }
 
-            }
-            // Case 2. The hole has a 2-node as parent and 3-node as sibling.
-            else if (hole.parent().isTwoNode() && hole.sibling().isThreeNode()) {
-                //System.out.println("Case 2 ");
-                Node<T> parent = hole.parent();
-                Node<T> sibling = hole.sibling();
-
-                if (parent.leftChild() == hole) {
-                    Node<T> leftChild = Node.newTwoNode(parent.val());
-                    Node<T> rightChild = Node.newTwoNode(sibling.rightVal());
-                    parent.setVal(sibling.leftVal());
-                    parent.replaceChild(hole, leftChild);
-                    parent.replaceChild(sibling, rightChild);
-                    leftChild.setLeftChild(hole.child());
-                    leftChild.setRightChild(sibling.leftChild());
-                    rightChild.setLeftChild(sibling.middleChild());
-                    rightChild.setRightChild(sibling.rightChild());
-                } else {
-                    Node<T> leftChild = Node.newTwoNode(sibling.leftVal());
-                    Node<T> rightChild = Node.newTwoNode(parent.val());
-                    parent.setVal(sibling.rightVal());
-                    parent.replaceChild(sibling, leftChild);
-                    parent.replaceChild(hole, rightChild);
-                    leftChild.setLeftChild(sibling.leftChild());
-                    leftChild.setRightChild(sibling.middleChild());
-                    rightChild.setLeftChild(sibling.rightChild());
-                    rightChild.setRightChild(hole.child());
-                }
-                unlinkNode(hole);
-                unlinkNode(sibling);
-                hole = null;
-            }
-
-            // Case 3. The hole has a 3-node as parent and 2-node as sibling.
-            else if (hole.parent().isThreeNode()) {
-                Node<T> parent = hole.parent();
-
-                // subcase (a), hole is in the middle
-                if (parent.middleChild() == hole && parent.leftChild().isTwoNode()) {
-                    //System.out.println("Case 3 (a) hole in the middle");
-                    Node<T> leftChild = parent.leftChild();
-                    Node<T> newParent = Node.newTwoNode(parent.rightVal());
-                    Node<T> newLeftChild = Node.newThreeNode(leftChild.val(), parent.leftVal());
-                    newParent.setLeftChild(newLeftChild);
-                    newParent.setRightChild(parent.rightChild());
-                    if (parent != root) {
-                        parent.parent().replaceChild(parent, newParent);
-                    } else {
-                        root = newParent;
-                    }
 
-                    newLeftChild.setLeftChild(leftChild.leftChild());
-                    newLeftChild.setMiddleChild(leftChild.rightChild());
-                    newLeftChild.setRightChild(hole.child());
+    // Adds key and right as the rightmost value and subtree of the node. The result is either as tall as
+    // the node, or a 2-node one level taller when the node had to be split.
+    private Piece<T> joinRight(Node<T> node, int height, T key, Piece<T> right) {
+        if (height == right.height + 1)
+            return absorbRight(node, height, key, node.rightChild(), right.node);
+
+        Piece<T> result = joinRight(node.rightChild(), height - 1, key, right);
+        if (result.height == height - 1) {
+            ((Internal<T>) node).setRightChild(result.node);
+            refresh(node);
+            return new Piece<T>(node, height);
+        }
+        Node<T> split = result.node;
+        return absorbRight(node, height, split.leftVal, split.leftChild(), split.rightChild());
+    }
+
+
+    // Replaces the rightmost child of the node by two children with the value between them.
+    private Piece<T> absorbRight(Node<T> node, int height, T val, Node<T> leftChild, Node<T> rightChild) {
+        if (node.isTwoNode()) {
+            node.makeThreeNode(node.leftVal, val);
+            setChildren(node, node.leftChild(), leftChild, rightChild);
+            refresh(node);
+            return new Piece<T>(node, height);
+        }
+        T rightVal = node.rightVal;
+        Node<T> middle = node.middleChild();
+        node.makeTwoNode(node.leftVal);
+        setChildren(node, node.leftChild(), null, middle);
+        refresh(node);
+        Node<T> right = newNode(val, leftChild, rightChild);
+        return new Piece<T>(newNode(rightVal, node, right), height + 1);
+    }
+
+
+    // Mirror image of joinRight.
+    private Piece<T> joinLeft(Node<T> node, int height, T key, Piece<T> left) {
+        if (height == left.height + 1)
+            return absorbLeft(node, height, key, left.node, node.leftChild());
+
+        Piece<T> result = joinLeft(node.leftChild(), height - 1, key, left);
+        if (result.height == height - 1) {
+            ((Internal<T>) node).setLeftChild(result.node);
+            refresh(node);
+            return new Piece<T>(node, height);
+        }
+        Node<T> split = result.node;
+        return absorbLeft(node, height, split.leftVal, split.leftChild(), split.rightChild());
+    }
+
+
+    // Replaces the leftmost child of the node by two children with the value between them.
+    private Piece<T> absorbLeft(Node<T> node, int height, T val, Node<T> leftChild, Node<T> rightChild) {
+        if (node.isTwoNode()) {
+            node.makeThreeNode(val, node.leftVal);
+            setChildren(node, leftChild, rightChild, node.rightChild());
+            refresh(node);
+            return new Piece<T>(node, height);
+        }
+        T leftVal = node.leftVal;
+        Node<T> middle = node.middleChild();
+        node.makeTwoNode(node.rightVal);
+        setChildren(node, middle, null, node.rightChild());
+        refresh(node);
+        Node<T> left = newNode(val, leftChild, rightChild);
+        return new Piece<T>(newNode(leftVal, left, node), height + 1);
+    }
+
+
+    /**
+     * Joins two trees without a key in between. The smallest value of right is removed from it
+     * and used as the key.
+     */
+    private Piece<T> concat(Piece<T> left, Piece<T> right) {
+        if (left.node == null)
+            return right;
+        if (right.node == null)
+            return left;
+
+        TwoThreeTree<T> rest = new TwoThreeTree<T>();
+        rest.monoid = monoid;
+        rest.normalizer = normalizer;
+        rest.root = right.node;
+        T key = rest.first();
+        rest.remove(key);
+        return join(left, key, new Piece<T>(rest.root, rest.height()));
+    }
+
+
+    // Number of values in the subtree.
+    private int count(Node<T> node) {
+        if (node == null)
+            return 0;
+        if (node.isTwoNode())
+            return 1 + count(node.leftChild()) + count(node.rightChild());
+        return 2 + count(node.leftChild()) + count(node.middleChild()) + count(node.rightChild());
+    }
+
+
+    /**
+     * Height of a tree built by build() from n values: the smallest height that can hold them.
+     */
+    static int heightFor(int n) {
+        int height = 0;
+        while (maxValues(height) < n) {
+            height++;
+        }
+        return height;
+    }
+
+    // A tree of this height holds at most 3^height - 1 values, and at least 2^height - 1.
+    private static long maxValues(int height) {
+        long max = 1;
+        for (int i = 0; i < height; i++) {
+            max *= 3;
+        }
+        return max - 1;
+    }
+
+
+    /**
+     * Builds a tree from sorted, distinct values in O(n). The height must be one that can hold
+     * to - from values, as returned by heightFor().
+     */
+    private Node<T> build(Object[] values, int from, int to, int height) {
+        int n = to - from;
+        if (n == 0)
+            return null;
+        if (height == 1) {
+            return n == 1 ? newNode((T) values[from], null, null)
+                    : newNode((T) values[from], (T) values[from + 1], null, null, null);
+        }
+
+        if (n <= 2 * maxValues(height - 1) + 1) {
+            int left = from + (n - 1) / 2;
+            return newNode((T) values[left],
+                    build(values, from, left, height - 1),
+                    build(values, left + 1, to, height - 1));
+        }
+
+        // Three children. The remainder goes to the left and middle children.
+        int child = (n - 2) / 3;
+        int remainder = (n - 2) % 3;
+        int left = from + child + (remainder > 0 ? 1 : 0);
+        int middle = left + 1 + child + (remainder > 1 ? 1 : 0);
+        return newNode((T) values[left], (T) values[middle],
+                build(values, from, left, height - 1),
+                build(values, left + 1, middle, height - 1),
+                build(values, middle + 1, to, height - 1));
+    }
+
+
+    /**
+     * The prefix of the value under the normalizer, with the sign bit flipped so that signed comparison of
+     * prefixes is unsigned comparison of the normalizer's results.
+     */
+    static <T> long prefix(KeyNormalizer<T> normalizer, T value) {
+        return normalizer.prefix(value) ^ Long.MIN_VALUE;
+    }
+
+    // 0 in a tree without a normalizer.
+    private long prefix(T value) {
+        return normalizer == null ? 0 : prefix(normalizer, value);
+    }
 
-                    unlinkNode(parent);
-                    unlinkNode(leftChild);
-                    unlinkNode(hole);
-                    hole = null;
-                }
-                // subcase (b), hole is in the middle
-                else if (parent.middleChild() == hole && parent.rightChild().isTwoNode()) {
-                    //System.out.println("Case 3(b) hole in the middle");
-                    Node<T> rightChild = parent.rightChild();
-                    Node<T> newParent = Node.newTwoNode(parent.leftVal());
-                    Node<T> newRightChild = Node.newThreeNode(parent.rightVal(), rightChild.val());
-                    newParent.setLeftChild(parent.leftChild());
-                    newParent.setRightChild(newRightChild);
-                    if (parent != root) {
-                        parent.parent().replaceChild(parent, newParent);
-                    } else {
-                        root = newParent;
-                    }
-                    newRightChild.setLeftChild(hole.child());
-                    newRightChild.setMiddleChild(rightChild.leftChild());
-                    newRightChild.setRightChild(rightChild.rightChild());
-                    unlinkNode(parent);
-                    unlinkNode(rightChild);
-                    unlinkNode(hole);
-                    hole = null;
-                }
-                else if (parent.middleChild().isTwoNode()) {
-                    Node<T> middleChild = parent.middleChild();
-
-                    // subcase (a). hole is the left child.
-                    if (parent.leftChild() == hole) {
-                        //System.out.println("Case 3 (a) hole is left child");
-                        Node<T> newParent = Node.newTwoNode(parent.rightVal());
-                        Node<T> leftChild = Node.newThreeNode(parent.leftVal(), middleChild.val());
-                        newParent.setLeftChild(leftChild);
-                        newParent.setRightChild(parent.rightChild());
-                        if (parent != root) {
-                            parent.parent().replaceChild(parent, newParent);
-                        } else {
-                            root = newParent;
-                        }
-
-                        leftChild.setLeftChild(hole.child());
-                        leftChild.setMiddleChild(middleChild.leftChild());
-                        leftChild.setRightChild(middleChild.rightChild());
-
-                        unlinkNode(parent);
-                        unlinkNode(hole);
-                        unlinkNode(middleChild);
-                        hole = null;
-                    }
-                    // subcase (a). hole is the right child.
-                    else if (parent.rightChild() == hole) {
-                        //System.out.println("Case 3 (a) hole is right child");
-                        Node<T> newParent = Node.newTwoNode(parent.leftVal());
-                        Node<T> rightChild = Node.newThreeNode(middleChild.val(), parent.rightVal());
-                        newParent.setRightChild(rightChild);
-                        newParent.setLeftChild(parent.leftChild());
-                        if (parent != root) {
-                            parent.parent().replaceChild(parent, newParent);
-                        } else {
-                            root = newParent;
-                        }
-
-                        rightChild.setLeftChild(middleChild.leftChild());
-                        rightChild.setMiddleChild(middleChild.rightChild());
-                        rightChild.setRightChild(hole.child());
-
-                        unlinkNode(parent);
-                        unlinkNode(hole);
-                        unlinkNode(middleChild);
-                        hole = null;
-                    }
-                }
 
-                // Case 4. The hole has a 3-node as parent and 3-node as sibling.
-
-                else if (parent.middleChild().isThreeNode()) {
-                    Node<T> middleChild = parent.middleChild();
-                    // subcase (a) hole is the left child
-                    if (hole == parent.leftChild()) {
-                        //System.out.println("Case 4 (a) hole is left child");
-                        Node<T> newLeftChild = Node.newTwoNode(parent.leftVal());
-                        Node<T> newMiddleChild = Node.newTwoNode(middleChild.rightVal());
-                        parent.setLeftVal(middleChild.leftVal());
-                        parent.setLeftChild(newLeftChild);
-                        parent.setMiddleChild(newMiddleChild);
-                        newLeftChild.setLeftChild(hole.child());
-                        newLeftChild.setRightChild(middleChild.leftChild());
-                        newMiddleChild.setLeftChild(middleChild.middleChild());
-                        newMiddleChild.setRightChild(middleChild.rightChild());
-
-                        unlinkNode(hole);
-                        unlinkNode(middleChild);
-                        hole = null;
-                    }
-                    // subcase (b) hole is the right child
-                    else if (hole == parent.rightChild()) {
-                       // System.out.println("Case 4 (b) hole is right child");
-                        Node<T> newMiddleChild = Node.newTwoNode(middleChild.leftVal());
-                        Node<T> newRightChild = Node.newTwoNode(parent.rightVal());
-                        parent.setRightVal(middleChild.rightVal());
-                        parent.setMiddleChild(newMiddleChild);
-                        parent.setRightChild(newRightChild);
-                        newMiddleChild.setLeftChild(middleChild.leftChild());
-                        newMiddleChild.setRightChild(middleChild.middleChild());
-                       // newMiddleChild.setParent(middleChild.middleChild());
-                        newRightChild.setLeftChild(middleChild.rightChild());
-                        newRightChild.setRightChild(hole.child());
-
-                        unlinkNode(hole);
-                        unlinkNode(middleChild);
-                        hole = null;
-
-                    } else if (hole == parent.middleChild() && parent.leftChild().isThreeNode()) {
-                       // System.out.println("Case 4 (a) hole is middle child, left is 3-node");
-                        Node<T> leftChild = parent.leftChild();
-                        Node<T> newLeftChild = Node.newTwoNode(leftChild.leftVal());
-                        Node<T> newMiddleChild = Node.newTwoNode(parent.leftVal());
-                        parent.setLeftVal(leftChild.rightVal());
-                        parent.setLeftChild(newLeftChild);
-                        parent.setMiddleChild(newMiddleChild);
-                        newLeftChild.setLeftChild(leftChild.leftChild());
-                        newLeftChild.setRightChild(leftChild.middleChild());
-                        newMiddleChild.setLeftChild(leftChild.rightChild());
-                        newMiddleChild.setRightChild(hole.child());
-
-                        unlinkNode(hole);
-                        unlinkNode(leftChild);
-                        hole = null;
-                    } else {
-                       assert  (hole == parent.middleChild() && parent.rightChild().isThreeNode());
-                       // System.out.println("Case 4 (b) hole is middle child, right is 3-node");
-                        Node<T> rightChild = parent.rightChild();
-                        Node<T> newRightChild = Node.newTwoNode(rightChild.rightVal());
-                        Node<T> newMiddleChild = Node.newTwoNode(parent.rightVal());
-                        parent.setRightVal(rightChild.leftVal());
-                        parent.setMiddleChild(newMiddleChild);
-                        parent.setRightChild(newRightChild);
-                        newRightChild.setRightChild(rightChild.rightChild());
-                        newRightChild.setLeftChild(rightChild.middleChild());
-                        newMiddleChild.setRightChild(rightChild.leftChild());
-                        newMiddleChild.setLeftChild(hole.child());
-
-                        unlinkNode(hole);
-                        unlinkNode(rightChild);
-                        hole = null;
-                    }
-                }
+    // Compare the value, whose prefix is key, with the left or right value of the node. In a tree with
+    // a normalizer the prefixes decide unless they are equal.
 
-            }
+    private int compareLeft(T value, long key, Node<T> node) {
+        if (normalizer != null) {
+            long leftKey = node instanceof AbbreviatedLeaf ? ((AbbreviatedLeaf<T>) node).leftKey
+                    : ((AbbreviatedInternal<T>) node).leftKey;
+            if (key != leftKey)
+                return key < leftKey ? -1 : 1;
         }
+        return value.compareTo(node.leftVal);
+    }
 
-        size--;
-        return true;
+    private int compareRight(T value, long key, Node<T> node) {
+        if (normalizer != null) {
+            long rightKey = node instanceof AbbreviatedLeaf ? ((AbbreviatedLeaf<T>) node).rightKey
+                    : ((AbbreviatedInternal<T>) node).rightKey;
+            if (key != rightKey)
+                return key < rightKey ? -1 : 1;
+        }
+        return value.compareTo(node.rightVal);
     }
 
 
-    private void unlinkNode(Node node) {
-        node.removeChildren();
-        node.setParent(null);
+    // Node factories. In a tree with a monoid, internal nodes are created with their aggregate. In a tree
+    // with a normalizer, all nodes are created with the prefixes of their values.
+
+    private Node<T> newNode(T value, Node<T> leftChild, Node<T> rightChild) {
+        if (normalizer != null)
+            return leftChild == null ? new AbbreviatedLeaf<T>(value, null, normalizer)
+                    : new AbbreviatedInternal<T>(value, null, leftChild, null, rightChild, normalizer);
+        if (monoid == null || leftChild == null)
+            return Node.newTwoNode(value, leftChild, rightChild);
+        Node<T> node = new AggregateInternal<T>(value, null, leftChild, null, rightChild);
+        refresh(node);
+        return node;
     }
 
+    private Node<T> newNode(T leftVal, T rightVal, Node<T> leftChild, Node<T> middleChild, Node<T> rightChild) {
+        if (normalizer != null)
+            return leftChild == null ? new AbbreviatedLeaf<T>(leftVal, rightVal, normalizer)
+                    : new AbbreviatedInternal<T>(leftVal, rightVal, leftChild, middleChild, rightChild, normalizer);
+        if (monoid == null || leftChild == null)
+            return Node.newThreeNode(leftVal, rightVal, leftChild, middleChild, rightChild);
+        Node<T> node = new AggregateInternal<T>(leftVal, rightVal, leftChild, middleChild, rightChild);
+        refresh(node);
+        return node;
+    }
 
-    private Node<T> successor(Node<T> node, T value) {
-        if (node == null)
-            return null;
 
-        if (!node.isTerminal()) {
-            Node<T> p;
-            if (node.isThreeNode() && node.leftVal().equals(value)) {
-                p = node.middleChild();
-            } else {
-                p = node.rightChild();
-            }
-            while (p.leftChild() != null) {
-                p = p.leftChild();
-            }
-            return p;
-        } else {
-            Node<T> p = node.parent();
-            if (p == null) return null;
-            
-            Node<T> ch = node;
-            while (p != null && ch == p.rightChild()) {
-                ch = p;
-                p = p.parent();
-            }
-            return p != null ? p : null;
+    /**
+     * Recomputes the cached aggregate of the node from its values and its children's aggregates.
+     * Must be called after the node's values or children change, once its children are up to date.
+     * Does nothing for terminal nodes, holes and trees without a monoid.
+     */
+    private void refresh(Node<T> node) {
+        if (monoid == null || !(node instanceof AggregateInternal) || node.isHole())
+            return;
+        Object aggregate = monoid.combine(aggregateOf(node.leftChild()), monoid.lift(node.leftVal));
+        if (node.isThreeNode()) {
+            aggregate = monoid.combine(aggregate, aggregateOf(node.middleChild()));
+            aggregate = monoid.combine(aggregate, monoid.lift(node.rightVal));
         }
+        ((AggregateInternal<T>) node).aggregate = monoid.combine(aggregate, aggregateOf(node.rightChild()));
     }
 
-    private Node<T> predecessor(Node<T> node, T value) {
+    private void refreshChildren(Node<T> parent) {
+        if (monoid == null)
+            return;
+        refresh(parent.leftChild());
+        if (parent.isThreeNode())
+            refresh(parent.middleChild());
+        refresh(parent.rightChild());
+    }
+
+
+    // Aggregate of all values of the subtree.
+    private Object aggregateOf(Node<T> node) {
         if (node == null)
-            return null;
+            return monoid.identity();
+        if (node instanceof AggregateInternal)
+            return ((AggregateInternal<T>) node).aggregate;
+        Object aggregate = monoid.lift(node.leftVal);
+        return node.isTwoNode() ? aggregate : monoid.combine(aggregate, monoid.lift(node.rightVal));
+    }
 
-        Node<T> p;
-        if (!node.isTerminal()) {
-            if (node.isThreeNode() && node.rightVal().equals(value)) {
-                p = node.middleChild();
-            } else {
-                p = node.leftChild();
-            }
 
-            while (p.rightChild() != null) {
-                p = p.rightChild();
-            }
-            return p;
-        } else {
-            throw new UnsupportedOperationException("Implement predecessor parent is not terminal node");
-        }
-       
+    /**
+     * Reduces the elements from fromElement, inclusive, to toElement, exclusive, in order, with the
+     * monoid the tree was created with. A null bound leaves that side of the range open. Only the nodes
+     * on the paths to the two bounds are visited, every subtree between them contributes its cached
+     * aggregate, so the cost is O(log n) regardless of the size of the range.
+     *
+     * @param <A> value type of the monoid.
+     * @throws IllegalStateException if the tree was created without a monoid.
+     */
+    public <A> A aggregate(T fromElement, T toElement) {
+        if (monoid == null)
+            throw new IllegalStateException("The tree has no monoid");
+        if (fromElement != null && toElement != null && fromElement.compareTo(toElement) > 0)
+            throw new IllegalArgumentException("fromElement > toElement");
+        return (A) aggregate(root, fromElement, toElement);
     }
 
 
-    private Node<T> splitNode(Node<T> threeNode, T value) {
-        T min;
-        T max;
-        T middle;
-        if (value.compareTo(threeNode.leftVal()) < 0) {
-            min = value;
-            middle = threeNode.leftVal();
-            max = threeNode.rightVal();
-        } else if (value.compareTo(threeNode.rightVal()) < 0) {
-            min = threeNode.leftVal();
-            middle = value;
-            max = threeNode.rightVal();
-        } else {
-            min = threeNode.leftVal();
-            max = value;
-            middle = threeNode.rightVal();
+    // Aggregate of the values of the subtree within the bounds. A null bound is one the whole subtree is within.
+    private Object aggregate(Node<T> node, T fromElement, T toElement) {
+        if (node == null)
+            return monoid.identity();
+        if (fromElement == null && toElement == null)
+            return aggregateOf(node);
+
+        Object aggregate = monoid.identity();
+        int values = node.isTwoNode() ? 1 : 2;
+        // The child at i holds the values between low and high, where a null low or high is unbounded.
+        T low = null;
+        for (int i = 0; i <= values; i++) {
+            T high = i == values ? null : i == 0 ? node.leftVal : node.rightVal;
+            boolean empty = (toElement != null && low != null && toElement.compareTo(low) <= 0)
+                    || (fromElement != null && high != null && fromElement.compareTo(high) >= 0);
+            if (!empty) {
+                T from = fromElement == null || (low != null && fromElement.compareTo(low) <= 0) ? null : fromElement;
+                T to = toElement == null || (high != null && high.compareTo(toElement) <= 0) ? null : toElement;
+                Node<T> child = i == 0 ? node.leftChild() : i == values ? node.rightChild() : node.middleChild();
+                aggregate = monoid.combine(aggregate, aggregate(child, from, to));
+            }
+            if (high == null || (toElement != null && high.compareTo(toElement) >= 0))
+                break;
+            if (fromElement == null || fromElement.compareTo(high) <= 0)
+                aggregate = monoid.combine(aggregate, monoid.lift(high));
+            low = high;
         }
-
-        Node<T> parent = Node.newTwoNode(middle);
-        parent.setLeftChild(Node.newTwoNode(min));
-        parent.setRightChild(Node.newTwoNode(max));
-        return parent;
+        return aggregate;
     }
 
 
@@ -766,6 +1675,76 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
     }
 
 
+    public interface Predicate<T> {
+        public boolean apply(T t);
+    }
+
+
+    /**
+     * An associative operation with an identity, used to aggregate elements. combine is applied to
+     * aggregates of neighbouring ranges in key order, so it does not have to be commutative.
+     */
+    public interface Monoid<T, A> {
+        public A identity();
+
+        public A lift(T value);
+
+        public A combine(A left, A right);
+    }
+
+
+    /**
+     * Maps elements to 64-bit prefixes of their sort keys, for a tree that compares on cached prefixes
+     * first. Compared as unsigned numbers, the prefixes must be in the order of the elements, though
+     * different elements may have equal prefixes: a < b implies prefix(a) <= prefix(b), and equal elements
+     * have equal prefixes. The fewer ties, the fewer compareTo() calls.
+     */
+    public interface KeyNormalizer<T> {
+        /**
+         * The first four UTF-16 code units of the string, padded with zeros.
+         */
+        public static final KeyNormalizer<String> STRING = new KeyNormalizer<String>() {
+            public long prefix(String value) {
+                long prefix = 0;
+                for (int i = 0; i < 4; i++) {
+                    prefix = (prefix << 16) | (i < value.length() ? value.charAt(i) : 0);
+                }
+                return prefix;
+            }
+        };
+
+        public long prefix(T value);
+    }
+
+
+    /**
+     * An iterator that can jump ahead. seek() moves forward to a key from the current position without
+     * visiting the skipped elements, so intersecting or merging sorted sets by leapfrogging costs time
+     * sublinear in the skipped elements. A seek costs O(log n) in the worst case: it is cheap when the
+     * key lies within a small subtree around the current position, but even a short jump costs the full
+     * height if it crosses from one subtree of the root into the next.
+     */
+    public interface Cursor<T> extends Iterator<T> {
+        /**
+         * The element next() will return, or null at the end.
+         */
+        public T peek();
+
+        /**
+         * Skips the elements less than key, and returns the element next() will return, or null at the end.
+         * A key at or before the current position does not move the cursor.
+         */
+        public T seek(T key);
+
+        /**
+         * The element last returned by next().
+         *
+         * @throws IllegalStateException if next() has not been called.
+         */
+        public T key();
+    }
+
+
     /**
      * Preorder search.
      * Visit the node.
@@ -815,63 +1794,286 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
      * The returning iterator does not support remove.
      */
     public Iterator<T> iterator() {
+        return new RangeIterator(null, true, null);
+    }
+
+
+    /**
+     * Cursor over the elements in ascending order. It does not support remove, and like the iterator it
+     * must not be used after the tree is modified.
+     */
+    public Cursor<T> cursor() {
+        return new RangeIterator(null, true, null);
+    }
+
+
+    /**
+     * Publishes the elements from fromElement, inclusive, to toElement, exclusive, as demand arrives.
+     * A null bound leaves that side of the range open.
+     */
+    public RangePublisher<T> rangePublisher(T fromElement, T toElement) {
+        return new RangePublisher<T>(this, fromElement, true, toElement);
+    }
+
+
+    /**
+     * Iterates over the elements from fromElement to toElement, exclusive. A null bound leaves that side
+     * of the range open.
+     */
+    Iterator<T> rangeIterator(T fromElement, boolean fromInclusive, T toElement) {
+        return new RangeIterator(fromElement, fromInclusive, toElement);
+    }
+
 
-        return new Iterator<T>() {
-            Node<T> nextNode;
+    /**
+     * In-order iterator that keeps the path from the root to the next value on a stack instead of following
+     * parent links. Each stack entry is a node together with the index of its next value: 0 for the left
+     * value of a 3-node or the value of a 2-node, 1 for the right value of a 3-node.
+     */
+    private final class RangeIterator implements Cursor<T> {
+        private final T toElement;
+        private final Node<T>[] nodes;
+        private final byte[] slots;
+        private int depth;
+        private T last;
+
+        RangeIterator(T fromElement, boolean fromInclusive, T toElement) {
+            this.toElement = toElement;
+            int height = height();
+            nodes = new Node[height];
+            slots = new byte[height];
+            descend(root, fromElement, fromInclusive);
+        }
 
-            // Stack to keep three nodes
-            Deque<Node<T>> threeNodes = new ArrayDeque<Node<T>>();
-            T next;
-            {
-                Node<T> node = root;
-                while(node != null && node.leftChild() != null) {
+        // Push every node on the path to fromElement that still has values at or after it.
+        private void descend(Node<T> node, T fromElement, boolean fromInclusive) {
+            while (node != null) {
+                int leftComp = fromElement == null ? -1 : fromElement.compareTo(node.isTwoNode() ? node.val() : node.leftVal());
+                if (leftComp < 0 || (leftComp == 0 && fromInclusive)) {
+                    push(node, 0);
                     node = node.leftChild();
+                } else if (node.isThreeNode()) {
+                    int rightComp = fromElement.compareTo(node.rightVal());
+                    if (rightComp < 0 || (rightComp == 0 && fromInclusive)) {
+                        push(node, 1);
+                        node = node.middleChild();
+                    } else {
+                        node = node.rightChild();
+                    }
+                } else {
+                    node = node.rightChild();
                 }
-                nextNode = node;
             }
-            public boolean hasNext() {
-                return next != null || nextNode != null;
+        }
+
+        private void push(Node<T> node, int slot) {
+            nodes[depth] = node;
+            slots[depth] = (byte) slot;
+            depth++;
+        }
+
+        private void pushLeft(Node<T> node) {
+            while (node != null) {
+                push(node, 0);
+                node = node.leftChild();
             }
+        }
 
-            public T next() {
-                T prev;
-                if (next != null) {
-                    prev = next;
-                    next = null;
-                    nextNode = successor(nextNode, prev);
-                    return prev;
-                }
-                if (nextNode.isThreeNode()) {
-                    if (nextNode.isTerminal()) {
-                        next = nextNode.rightVal();
-                        prev = nextNode.leftVal();
-                    } else {
-                        if (threeNodes.peekFirst() == nextNode) {
-                            threeNodes.pollFirst();
-                            prev = nextNode.rightVal();
-                            nextNode = successor(nextNode, prev);
-                        } else {
-                            prev = nextNode.leftVal();
-                            threeNodes.addFirst(nextNode);
-                            nextNode = successor(nextNode, prev);
-                        }
-                    }
+        // Next value of the stack entry at i.
+        private T valueAt(int i) {
+            Node<T> node = nodes[i];
+            if (node.isTwoNode())
+                return node.val();
+            return slots[i] == 0 ? node.leftVal() : node.rightVal();
+        }
+
+        public boolean hasNext() {
+            return depth > 0 && (toElement == null || valueAt(depth - 1).compareTo(toElement) < 0);
+        }
+
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T value = valueAt(depth - 1);
+            Node<T> node = nodes[depth - 1];
+            if (node.isThreeNode() && slots[depth - 1] == 0) {
+                slots[depth - 1] = 1;
+                pushLeft(node.middleChild());
+            } else {
+                depth--;
+                pushLeft(node.rightChild());
+            }
+            last = value;
+            return value;
+        }
+
+        public T peek() {
+            return hasNext() ? valueAt(depth - 1) : null;
+        }
+
+        /**
+         * The values on the stack increase from the top down, and everything between two neighbouring
+         * entries lies in the subtree that the upper one was pushed from. So the cursor pops the entries
+         * below key, which are each one level up, and descends again from the lowest of them: the work is
+         * proportional to the height of the lowest subtree that holds both the current position and key,
+         * not to the number of skipped elements.
+         */
+        public T seek(T key) {
+            int i = depth - 1;
+            while (i >= 0 && valueAt(i).compareTo(key) < 0) {
+                i--;
+            }
+            if (i < depth - 1) {
+                // The entry at i + 1 is the lowest one below key; the rest of its node is all that can
+                // still hold values before the entry at i.
+                depth = i + 2;
+                Node<T> node = nodes[depth - 1];
+                if (node.isThreeNode() && slots[depth - 1] == 0 && key.compareTo(node.rightVal()) <= 0) {
+                    slots[depth - 1] = 1;
+                    descend(node.middleChild(), key, true);
                 } else {
-                    prev = nextNode.val();
-                    nextNode = successor(nextNode, prev);
+                    depth--;
+                    descend(node.rightChild(), key, true);
                 }
-                return prev;
             }
+            return peek();
+        }
+
+        public T key() {
+            if (last == null)
+                throw new IllegalStateException();
+            return last;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /**
+     * Iterates over the elements in descending order, starting at last(). Nothing is copied: like the
+     * forward iterator it keeps the path to the next value on a stack, and each element costs amortized O(1).
+     * The returning iterator does not support remove.
+     */
+    public Iterator<T> descendingIterator() {
+        return new DescendingIterator();
+    }
+
 
+    /**
+     * Mirror image of RangeIterator. The slot of a 3-node is 1 while its right value is next, and 0
+     * once it moves on to the left value.
+     */
+    private final class DescendingIterator implements Iterator<T> {
+        private final Node<T>[] nodes;
+        private final byte[] slots;
+        private int depth;
+
+        DescendingIterator() {
+            int height = height();
+            nodes = new Node[height];
+            slots = new byte[height];
+            pushRight(root);
+        }
 
-            public void remove() {
-               throw new UnsupportedOperationException();
+        private void pushRight(Node<T> node) {
+            while (node != null) {
+                nodes[depth] = node;
+                slots[depth] = (byte) (node.isThreeNode() ? 1 : 0);
+                depth++;
+                node = node.rightChild();
             }
-        };
-        
+        }
+
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        public T next() {
+            if (depth == 0)
+                throw new NoSuchElementException();
+            Node<T> node = nodes[depth - 1];
+            if (slots[depth - 1] == 1) {
+                slots[depth - 1] = 0;
+                pushRight(node.middleChild());
+                return node.rightVal;
+            }
+            depth--;
+            pushRight(node.leftChild());
+            return node.leftVal;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /**
+     * Returns a view of the set in descending order. The view is backed by the tree: changes to either are
+     * visible in the other. Its iterator is descendingIterator(), so nothing is copied.
+     */
+    public SortedSet<T> descendingSet() {
+        return new DescendingSet();
     }
 
 
+    private final class DescendingSet extends AbstractSet<T> implements SortedSet<T> {
+
+        public Iterator<T> iterator() {
+            return descendingIterator();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return TwoThreeTree.this.contains(o);
+        }
+
+        @Override
+        public boolean add(T value) {
+            return TwoThreeTree.this.add(value);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return TwoThreeTree.this.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            TwoThreeTree.this.clear();
+        }
+
+        public Comparator<? super T> comparator() {
+            return Collections.reverseOrder();
+        }
+
+        public SortedSet<T> subSet(T fromElement, T toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        public SortedSet<T> headSet(T toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        public SortedSet<T> tailSet(T fromElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        public T first() {
+            return TwoThreeTree.this.last();
+        }
+
+        public T last() {
+            return TwoThreeTree.this.first();
+        }
+    }
+
 
 
 
@@ -913,6 +2115,104 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
     }
 
 
+    /**
+     * Returns the greatest element less than or equal to the value, or null if there is none.
+     */
+    public T floor(T value) {
+        T floor = null;
+        Node<T> node = root;
+        while (node != null) {
+            int comp = value.compareTo(node.leftVal);
+            if (comp == 0)
+                return node.leftVal;
+            if (comp < 0) {
+                node = node.leftChild();
+            } else if (node.isTwoNode()) {
+                floor = node.leftVal;
+                node = node.rightChild();
+            } else {
+                floor = node.leftVal;
+                comp = value.compareTo(node.rightVal);
+                if (comp == 0)
+                    return node.rightVal;
+                if (comp < 0) {
+                    node = node.middleChild();
+                } else {
+                    floor = node.rightVal;
+                    node = node.rightChild();
+                }
+            }
+        }
+        return floor;
+    }
+
+
+    /**
+     * Returns the least element greater than or equal to the value, or null if there is none.
+     */
+    public T ceiling(T value) {
+        T ceiling = null;
+        Node<T> node = root;
+        while (node != null) {
+            int comp = value.compareTo(node.leftVal);
+            if (comp == 0)
+                return node.leftVal;
+            if (comp < 0) {
+                ceiling = node.leftVal;
+                node = node.leftChild();
+            } else if (node.isTwoNode()) {
+                node = node.rightChild();
+            } else {
+                comp = value.compareTo(node.rightVal);
+                if (comp == 0)
+                    return node.rightVal;
+                if (comp < 0) {
+                    ceiling = node.rightVal;
+                    node = node.middleChild();
+                } else {
+                    node = node.rightChild();
+                }
+            }
+        }
+        return ceiling;
+    }
+
+
+    /**
+     * Number of levels in the tree, 0 for an empty tree. All terminal nodes are at the same depth.
+     */
+    int height() {
+        int height = 0;
+        for (Node<T> node = root; node != null; node = node.leftChild()) {
+            height++;
+        }
+        return height;
+    }
+
+
+    /**
+     * Counts the nodes of the tree. Returns the number of 2-nodes and the number of 3-nodes.
+     */
+    int[] countNodes() {
+        int[] counts = new int[2];
+        countNodes(root, counts);
+        return counts;
+    }
+
+    private void countNodes(Node<T> node, int[] counts) {
+        if (node == null)
+            return;
+        if (node.isTwoNode()) {
+            counts[0]++;
+        } else {
+            counts[1]++;
+            countNodes(node.middleChild(), counts);
+        }
+        countNodes(node.leftChild(), counts);
+        countNodes(node.rightChild(), counts);
+    }
+
+
     @Override
     public boolean contains(Object o) {
         try {
@@ -934,6 +2234,11 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
     @Override
     public void clear() {
         root = null;
+        size = 0;
+        hashCode = 0;
+        hashCodeValid = true;
+        if (index != null)
+            index.clear();
     }
 
 
@@ -971,8 +2276,20 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
         return a;
     }
 
+    /**
+     * When c is a sorted set in natural order and is large compared to the tree, the two sets are merged
+     * in one pass over both and the tree is rebuilt from the remaining elements, in O(n + m) instead of
+     * O(m log n).
+     */
     @Override
     public boolean removeAll(Collection<?> c) {
+        if (isNaturalOrder(c) && (long) c.size() * height() > size) {
+            try {
+                return removeAllSorted(c);
+            } catch (ClassCastException e) {
+                // Elements of another type, which remove(Object) below ignores.
+            }
+        }
         boolean removed = false;
         for (Object o : c) {
             removed |= remove(o);
@@ -981,6 +2298,98 @@ public class TwoThreeTree<T extends Comparable> extends AbstractSet<T> implement
     }
 
 
+    private boolean removeAllSorted(Collection<?> c) {
+        Object[] survivors = new Object[size];
+        int count = 0;
+        Iterator<?> other = c.iterator();
+        Object next = other.hasNext() ? other.next() : null;
+        for (T value : this) {
+            int comp = 1;
+            while (next != null && (comp = value.compareTo(next)) > 0) {
+                next = other.hasNext() ? other.next() : null;
+            }
+            if (next == null || comp < 0)
+                survivors[count++] = value;
+        }
+        if (count == size)
+            return false;
+        rebuild(survivors, count);
+        return true;
+    }
+
+
+    /**
+     * When c is a sorted set in natural order and is large compared to the tree, walks both sets in order
+     * in O(n + m) instead of looking up each element of c.
+     */
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        if (index != null || !isNaturalOrder(c) || (long) c.size() * height() < size)
+            return super.containsAll(c);
+        Iterator<T> it = iterator();
+        try {
+            for (Object o : c) {
+                int comp = -1;
+                while (comp < 0 && it.hasNext()) {
+                    comp = it.next().compareTo(o);
+                }
+                if (comp != 0)
+                    return false;
+            }
+        } catch (ClassCastException e) {
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Compares the sets in one in-order pass over both when o is a sorted set in natural order.
+     *
+     * Like TreeSet, elements are compared with compareTo, so cached hash codes cannot rule out equality:
+     * elements that compare as equal may have different hash codes, like 1.0 and 1.00 as BigDecimal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!isNaturalOrder(o))
+            return super.equals(o);
+        SortedSet<?> other = (SortedSet<?>) o;
+        if (other.size() != size)
+            return false;
+        Iterator<?> it = other.iterator();
+        try {
+            for (T value : this) {
+                if (value.compareTo(it.next()) != 0)
+                    return false;
+            }
+        } catch (ClassCastException e) {
+            return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public int hashCode() {
+        if (!hashCodeValid) {
+            int h = 0;
+            for (T value : this) {
+                h += value.hashCode();
+            }
+            hashCode = h;
+            hashCodeValid = true;
+        }
+        return hashCode;
+    }
+
+
+    private static boolean isNaturalOrder(Object o) {
+        return o instanceof SortedSet && ((SortedSet) o).comparator() == null;
+    }
+
+
 
 
     @Override
@@ -0,0 +1,85 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+
+
+public class BoundedTwoThreeTreeTest {
+
+
+    @Test
+    public void keepLargest() throws Throwable {
+        compareToTreeSet(BoundedTwoThreeTree.Retain.LARGEST);
+    }
+
+
+    @Test
+    public void keepSmallest() throws Throwable {
+        compareToTreeSet(BoundedTwoThreeTree.Retain.SMALLEST);
+    }
+
+
+    private void compareToTreeSet(BoundedTwoThreeTree.Retain retain) throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int capacity : new int[] {1, 2, 3, 10, 100}) {
+            BoundedTwoThreeTree<Integer> bounded = new BoundedTwoThreeTree<Integer>(capacity, retain);
+            TreeSet<Integer> treeSet = new TreeSet<Integer>();
+            for (int i = 0; i < 5000; i++) {
+                int value = random.nextInt(10000);
+                if (i % 100 == 99) {
+                    // Removals make room again.
+                    Integer present = treeSet.isEmpty() ? Integer.valueOf(value) : treeSet.ceiling(value);
+                    if (present == null)
+                        present = treeSet.first();
+                    assertEquals(treeSet.remove(present), bounded.remove(present));
+                    continue;
+                }
+
+                boolean added = treeSet.add(value);
+                if (treeSet.size() > capacity) {
+                    Integer evicted = retain == BoundedTwoThreeTree.Retain.LARGEST
+                            ? treeSet.pollFirst() : treeSet.pollLast();
+                    added = evicted != value;
+                }
+                assertEquals(added, bounded.add(value));
+                assertTrue(bounded.size() <= capacity);
+            }
+            TwoThreeTest.assertSetEquals(treeSet, bounded);
+            TwoThreeTest.assertBalanced(bounded);
+
+            bounded.clear();
+            assertTrue(bounded.isEmpty());
+            assertTrue(bounded.add(1));
+        }
+    }
+
+
+    @Test
+    public void pollFirstAndLast() throws Throwable {
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+        TreeSet<Integer> treeSet = new TreeSet<Integer>();
+        assertNull(twoThreeTree.pollFirst());
+        assertNull(twoThreeTree.pollLast());
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(5000);
+            twoThreeTree.add(value);
+            treeSet.add(value);
+        }
+        while (!treeSet.isEmpty()) {
+            if (random.nextBoolean())
+                assertEquals(treeSet.pollFirst(), twoThreeTree.pollFirst());
+            else
+                assertEquals(treeSet.pollLast(), twoThreeTree.pollLast());
+            assertEquals(treeSet.size(), twoThreeTree.size());
+            if (treeSet.size() % 100 == 0) {
+                TwoThreeTest.assertSetEquals(treeSet, twoThreeTree);
+                TwoThreeTest.assertBalanced(twoThreeTree);
+            }
+        }
+        assertNull(twoThreeTree.pollFirst());
+    }
+}
@@ -0,0 +1,75 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+
+
+public class BufferedTwoThreeTreeTest {
+
+
+    @Test
+    public void compareToTreeSet() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int bufferSize : new int[] {1, 16, 1024, 0}) {
+            // 0 stands for a buffer of 16 without a hash index in the tree.
+            boolean hashIndexed = bufferSize > 0;
+            if (!hashIndexed)
+                bufferSize = 16;
+            BufferedTwoThreeTree<Integer> buffered = new BufferedTwoThreeTree<Integer>(bufferSize, hashIndexed);
+            TreeSet<Integer> treeSet = new TreeSet<Integer>();
+            for (int round = 0; round < 40; round++) {
+                for (int i = 0; i < 300; i++) {
+                    int value = random.nextInt(3000);
+                    if (random.nextInt(3) > 0)
+                        assertEquals(treeSet.add(value), buffered.add(value));
+                    else
+                        assertEquals(treeSet.remove(value), buffered.remove(value));
+                }
+                assertTrue(buffered.bufferedCount() < bufferSize);
+                assertEquals(treeSet.size(), buffered.size());
+                TwoThreeTest.assertSetEquals(treeSet, buffered);
+                if (!treeSet.isEmpty()) {
+                    assertEquals(treeSet.first(), buffered.first());
+                    assertEquals(treeSet.last(), buffered.last());
+                }
+                for (int i = 0; i < 100; i++) {
+                    int value = random.nextInt(3000);
+                    assertEquals(treeSet.contains(value), buffered.contains(value));
+                }
+                if (round % 10 == 9) {
+                    buffered.flush();
+                    assertEquals(0, buffered.bufferedCount());
+                    TwoThreeTest.assertSetEquals(treeSet, buffered);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void writesCancelInBuffer() {
+        BufferedTwoThreeTree<Integer> buffered = new BufferedTwoThreeTree<Integer>(8);
+        for (int i = 0; i < 8; i++) {
+            buffered.add(i);
+        }
+        // A full buffer is merged into the tree.
+        assertEquals(0, buffered.bufferedCount());
+
+        assertTrue(buffered.remove(3));
+        assertTrue(buffered.add(3));
+        assertTrue(buffered.add(10));
+        assertTrue(buffered.remove(10));
+        assertEquals(0, buffered.bufferedCount());
+
+        assertTrue(buffered.remove(0));
+        assertTrue(buffered.remove(7));
+        assertFalse(buffered.remove(7));
+        assertEquals(2, buffered.bufferedCount());
+        assertEquals(Integer.valueOf(1), buffered.first());
+        assertEquals(Integer.valueOf(6), buffered.last());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), new ArrayList<Integer>(buffered));
+    }
+}
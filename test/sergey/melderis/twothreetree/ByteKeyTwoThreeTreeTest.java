@@ -0,0 +1,125 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+
+
+public class ByteKeyTwoThreeTreeTest {
+
+
+    private static String randomKey(Random random) {
+        String[] regions = {"eu", "us", "apac"};
+        return "customer/" + regions[random.nextInt(regions.length)] + "/" + random.nextInt(100000);
+    }
+
+
+    @Test
+    public void compareToTreeSet() throws Throwable {
+        ByteKeyTwoThreeTree tree = new ByteKeyTwoThreeTree();
+        // ASCII keys, so String order is byte order.
+        TreeSet<String> treeSet = new TreeSet<String>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 20000; i++) {
+            String key = randomKey(random);
+            if (random.nextInt(4) > 0)
+                assertEquals(treeSet.add(key), tree.add(key));
+            else
+                assertEquals(treeSet.remove(key), tree.remove(key));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String key = randomKey(random);
+            assertEquals(treeSet.contains(key), tree.contains(key));
+            assertEquals(treeSet.contains(key), tree.contains(key.getBytes("UTF-8")));
+        }
+
+        assertEquals(treeSet.size(), tree.size());
+        Iterator<String> expected = treeSet.iterator();
+        int shared = 0;
+        ByteKey previous = null;
+        for (ByteKey key : tree) {
+            assertEquals(expected.next(), key.toString());
+            if (key.prefixLength() >= "customer/".length())
+                shared++;
+            if (previous != null)
+                assertTrue(previous.compareTo(key) < 0);
+            previous = key;
+        }
+        // All keys but the first one found a neighbour with the "customer/" prefix.
+        assertTrue(shared + " of " + tree.size(), shared >= tree.size() - 1);
+    }
+
+
+    @Test
+    public void unsignedOrder() {
+        ByteKey low = new ByteKey(new byte[] {0x01, 0x7F});
+        ByteKey high = new ByteKey(new byte[] {0x01, (byte) 0x80});
+        ByteKey longer = new ByteKey(new byte[] {0x01, 0x7F, 0x00});
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(high.compareTo(low) > 0);
+        assertTrue(low.compareTo(longer) < 0);
+        assertEquals(0, low.compareTo(new ByteKey(new byte[] {0x01, 0x7F})));
+        assertEquals(low, new ByteKey(new byte[] {0x01, 0x7F}));
+        assertEquals(low.hashCode(), new ByteKey(new byte[] {0x01, 0x7F}).hashCode());
+
+        ByteKey a = ByteKey.of("prefix/a");
+        ByteKey b = ByteKey.store("prefix/b".getBytes(), a, 7);
+        ByteKey c = ByteKey.store("prefix/c".getBytes(), b, 7);
+        assertEquals(7, b.prefixLength());
+        assertTrue(c.sharesPrefixWith(b));
+        assertTrue(b.compareTo(c) < 0);
+        assertTrue(c.compareTo(a) > 0);
+        assertEquals(ByteKey.of("prefix/c"), c);
+        assertEquals("prefix/c", c.toString());
+        assertEquals(a.hashCode(), ByteKey.store("prefix/a".getBytes(), c, 7).hashCode());
+    }
+
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+        }
+        return a.length - b.length;
+    }
+
+
+    @Test
+    public void storedKeysCompareAsBytes() {
+        // Few distinct bytes, zeros and bytes with the sign bit among them, so keys share prefixes of all
+        // lengths and differ in both the prefix arrays and the packed bytes.
+        byte[] alphabet = {0x00, 0x01, 0x7F, (byte) 0x80, (byte) 0xFF};
+        Random random = new Random(System.currentTimeMillis());
+        ByteKeyTwoThreeTree tree = new ByteKeyTwoThreeTree();
+        TreeSet<byte[]> treeSet = new TreeSet<byte[]>(new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                return compareUnsigned(a, b);
+            }
+        });
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = new byte[random.nextInt(20)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            assertEquals(treeSet.add(key), tree.add(key));
+        }
+
+        List<ByteKey> keys = new ArrayList<ByteKey>();
+        Iterator<byte[]> expected = treeSet.iterator();
+        for (ByteKey key : tree) {
+            assertArrayEquals(expected.next(), key.toByteArray());
+            keys.add(key);
+        }
+        for (int i = 0; i < 20000; i++) {
+            ByteKey a = keys.get(random.nextInt(keys.size()));
+            ByteKey b = keys.get(random.nextInt(keys.size()));
+            int comp = compareUnsigned(a.toByteArray(), b.toByteArray());
+            assertEquals(Integer.signum(comp), Integer.signum(a.compareTo(b)));
+            assertEquals(comp == 0, a.equals(b));
+            assertTrue(tree.contains(a.toByteArray()));
+            assertTrue(tree.contains(new ByteKey(a.toByteArray())));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+
+public class JournaledTwoThreeTreeTest {
+
+    private static final JournaledTwoThreeTree.Codec<Integer> INTEGER = new JournaledTwoThreeTree.Codec<Integer>() {
+        public void write(Integer value, DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+
+    private static File newDirectory() throws IOException {
+        File dir = File.createTempFile("twothreetree", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+
+    private static JournaledTwoThreeTree<Integer> open(File dir, int checkpointInterval) throws IOException {
+        return new JournaledTwoThreeTree<Integer>(dir, INTEGER, JournaledTwoThreeTree.SyncPolicy.ALWAYS,
+                JournaledTwoThreeTree.DEFAULT_SYNC_INTERVAL_MILLIS, checkpointInterval);
+    }
+
+
+    // Reopening with checkpoints in between must give back the same set as a TreeSet.
+    @Test
+    public void replayAfterReopen() throws Throwable {
+        File dir = newDirectory();
+        SortedSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        JournaledTwoThreeTree<Integer> tree = open(dir, 100);
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean())
+                assertEquals(treeSet.add(value), tree.add(value));
+            else
+                assertEquals(treeSet.remove(value), tree.remove(value));
+            if (i % 300 == 0) {
+                tree.close();
+                tree = open(dir, 100);
+                TwoThreeTest.assertSetEquals(treeSet, tree);
+            }
+        }
+        tree.close();
+
+        tree = open(dir, 100);
+        TwoThreeTest.assertSetEquals(treeSet, tree);
+        tree.close();
+    }
+
+
+    @Test
+    public void tornTailIsDiscarded() throws Throwable {
+        File dir = newDirectory();
+        JournaledTwoThreeTree<Integer> tree = open(dir, 1000);
+        tree.add(1);
+        tree.add(2);
+        tree.add(3);
+        tree.close();
+
+        // Cut the last record in half.
+        RandomAccessFile journal = new RandomAccessFile(new File(dir, "journal"), "rw");
+        journal.setLength(journal.length() - 6);
+        journal.close();
+
+        tree = open(dir, 1000);
+        assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2)), tree);
+        tree.add(4);
+        tree.close();
+
+        tree = open(dir, 1000);
+        assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2, 4)), tree);
+        tree.close();
+    }
+
+
+    @Test
+    public void checkpointReplacesOlderJournals() throws Throwable {
+        File dir = newDirectory();
+        JournaledTwoThreeTree<Integer> tree = open(dir, 10);
+        for (int i = 0; i < 25; i++) {
+            tree.add(i);
+        }
+        tree.remove(3);
+        tree.close();
+
+        // Two automatic checkpoints, the records after the last one are in the journal of generation 2.
+        assertEquals(new TreeSet<String>(Arrays.asList("journal.2", "snapshot")),
+                new TreeSet<String>(Arrays.asList(dir.list())));
+        tree = open(dir, 10);
+        assertEquals(24, tree.size());
+        assertFalse(tree.contains(3));
+
+        tree.clear();
+        tree.add(100);
+        tree.close();
+        tree = open(dir, 10);
+        assertEquals(new TreeSet<Integer>(Arrays.asList(100)), tree);
+        tree.close();
+    }
+
+
+    @Test
+    public void failedCheckpointDoesNotFailTheWrite() throws Throwable {
+        File dir = newDirectory();
+        // The temporary snapshot cannot be created while a directory has its name.
+        File blocker = new File(dir, "snapshot.tmp");
+        assertTrue(blocker.mkdir());
+        JournaledTwoThreeTree<Integer> tree = open(dir, 10);
+        for (int i = 0; i < 25; i++) {
+            assertTrue(tree.add(i));
+        }
+        assertNotNull(tree.checkpointFailure());
+        assertEquals(25, tree.size());
+
+        assertTrue(blocker.delete());
+        for (int i = 25; i < 30; i++) {
+            tree.add(i);
+        }
+        assertNull(tree.checkpointFailure());
+        tree.close();
+
+        tree = open(dir, 10);
+        assertEquals(30, tree.size());
+        assertEquals(Integer.valueOf(29), tree.last());
+        tree.close();
+    }
+
+
+    @Test
+    public void concurrentWritersShareSyncs() throws Throwable {
+        concurrentWriters(1 << 20);
+    }
+
+
+    // Checkpoints write their snapshots while the other writers keep appending.
+    @Test
+    public void concurrentWritersWithCheckpoints() throws Throwable {
+        concurrentWriters(50);
+    }
+
+
+    private void concurrentWriters(int checkpointInterval) throws Throwable {
+        File dir = newDirectory();
+        final JournaledTwoThreeTree<Integer> tree = open(dir, checkpointInterval);
+        final int threads = 4;
+        final int perThread = 200;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        tree.add(i * threads + offset);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        tree.close();
+
+        JournaledTwoThreeTree<Integer> reopened = open(dir, checkpointInterval);
+        assertEquals(threads * perThread, reopened.size());
+        assertEquals(Integer.valueOf(0), reopened.first());
+        assertEquals(Integer.valueOf(threads * perThread - 1), reopened.last());
+        reopened.close();
+    }
+}
@@ -0,0 +1,93 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+
+
+public class LazyDeleteTwoThreeTreeTest {
+
+
+    @Test
+    public void compareToTreeSet() throws Throwable {
+        LazyDeleteTwoThreeTree<Integer> lazy = new LazyDeleteTwoThreeTree<Integer>();
+        TreeSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int round = 0; round < 50; round++) {
+            // Alternate between insert-heavy and delete-heavy bursts.
+            int addPercent = round % 2 == 0 ? 80 : 20;
+            for (int i = 0; i < 500; i++) {
+                int value = random.nextInt(2000);
+                if (random.nextInt(100) < addPercent)
+                    assertEquals(treeSet.add(value), lazy.add(value));
+                else
+                    assertEquals(treeSet.remove(value), lazy.remove(value));
+                assertEquals(treeSet.size(), lazy.size());
+            }
+            // Every write purges more tombstones than it adds while they are over the ratio.
+            assertTrue(lazy.tombstoneCount() <= 0.25 * (lazy.size() + lazy.tombstoneCount()) + 1);
+            TwoThreeTest.assertSetEquals(treeSet, lazy);
+            if (!treeSet.isEmpty()) {
+                assertEquals(treeSet.first(), lazy.first());
+                assertEquals(treeSet.last(), lazy.last());
+            }
+            for (int i = 0; i < 100; i++) {
+                int value = random.nextInt(2000);
+                assertEquals(treeSet.contains(value), lazy.contains(value));
+            }
+        }
+
+        lazy.compact();
+        assertEquals(0, lazy.tombstoneCount());
+        TwoThreeTest.assertSetEquals(treeSet, lazy);
+    }
+
+
+    @Test
+    public void removedValuesAreHidden() {
+        LazyDeleteTwoThreeTree<Integer> lazy = new LazyDeleteTwoThreeTree<Integer>(0.9);
+        for (int i = 0; i < 10; i++) {
+            lazy.add(i);
+        }
+        assertTrue(lazy.remove(0));
+        assertTrue(lazy.remove(9));
+        assertFalse(lazy.remove(9));
+        assertEquals(2, lazy.tombstoneCount());
+        assertEquals(8, lazy.size());
+        assertEquals(Integer.valueOf(1), lazy.first());
+        assertEquals(Integer.valueOf(8), lazy.last());
+        assertFalse(lazy.contains(0));
+
+        // Adding a tombstone brings it back, adding a new value below the ratio leaves the tombstones alone.
+        assertTrue(lazy.add(9));
+        assertEquals(1, lazy.tombstoneCount());
+        assertTrue(lazy.add(10));
+        assertEquals(1, lazy.tombstoneCount());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), new ArrayList<Integer>(lazy));
+        lazy.compact();
+        assertEquals(0, lazy.tombstoneCount());
+    }
+
+
+    // Over the ratio, each write purges a bounded number of tombstones instead of compacting all at once.
+    @Test
+    public void purgesIncrementally() {
+        LazyDeleteTwoThreeTree<Integer> lazy = new LazyDeleteTwoThreeTree<Integer>(0.1);
+        for (int i = 0; i < 1000; i++) {
+            lazy.add(i);
+        }
+        int previous = 0;
+        for (int i = 0; i < 500; i++) {
+            assertTrue(lazy.remove(i));
+            int tombstones = lazy.tombstoneCount();
+            assertTrue(tombstones <= previous + 1);
+            assertTrue(tombstones >= previous + 1 - LazyDeleteTwoThreeTree.PURGES_PER_WRITE);
+            previous = tombstones;
+        }
+        assertTrue(previous > 0);
+        assertTrue(previous <= 0.1 * (lazy.size() + previous) + 1);
+        assertEquals(Integer.valueOf(500), lazy.first());
+    }
+}
@@ -0,0 +1,174 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.Flow;
+
+
+public class RangePublisherTest {
+
+
+    // Requests a fixed number of elements at a time, from inside onNext when a chunk is used up.
+    private static class ChunkSubscriber implements Flow.Subscriber<Integer> {
+        final int chunk;
+        final int limit;
+        final List<Integer> received = new ArrayList<Integer>();
+        Flow.Subscription subscription;
+        int outstanding;
+        boolean completed;
+
+        ChunkSubscriber(int chunk, int limit) {
+            this.chunk = chunk;
+            this.limit = limit;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            outstanding = chunk;
+            subscription.request(chunk);
+        }
+
+        public void onNext(Integer item) {
+            assertTrue("more elements than requested", outstanding > 0);
+            received.add(item);
+            outstanding--;
+            if (received.size() == limit) {
+                subscription.cancel();
+            } else if (outstanding == 0) {
+                outstanding = chunk;
+                subscription.request(chunk);
+            }
+        }
+
+        public void onError(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        public void onComplete() {
+            assertFalse(completed);
+            completed = true;
+        }
+    }
+
+
+    @Test
+    public void publishRangesInChunks() {
+        TwoThreeTree<Integer> tree = new TwoThreeTree<Integer>();
+        TreeSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(10000);
+            tree.add(value);
+            treeSet.add(value);
+        }
+
+        for (int round = 0; round < 100; round++) {
+            int from = random.nextInt(11000) - 500;
+            int to = from + random.nextInt(5000);
+            ChunkSubscriber subscriber = new ChunkSubscriber(1 + random.nextInt(20), Integer.MAX_VALUE);
+            tree.rangePublisher(from, to).subscribe(subscriber);
+            assertEquals(new ArrayList<Integer>(treeSet.subSet(from, to)), subscriber.received);
+            assertTrue(subscriber.completed);
+        }
+
+        ChunkSubscriber all = new ChunkSubscriber(7, Integer.MAX_VALUE);
+        tree.rangePublisher(null, null).subscribe(all);
+        assertEquals(new ArrayList<Integer>(treeSet), all.received);
+        assertTrue(all.completed);
+    }
+
+
+    @Test
+    public void resumeAfterCancel() {
+        TwoThreeTree<Integer> tree = new TwoThreeTree<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            tree.add(i * 2);
+        }
+
+        RangePublisher<Integer> publisher = tree.rangePublisher(100, 1500);
+        ChunkSubscriber first = new ChunkSubscriber(10, 25);
+        publisher.subscribe(first);
+        assertEquals(25, first.received.size());
+        assertFalse(first.completed);
+        Integer position = ((RangePublisher.RangeSubscription<Integer>) first.subscription).position();
+        assertEquals(Integer.valueOf(148), position);
+
+        // Elements inserted after the position while the stream is paused show up when it resumes.
+        tree.add(149);
+        ChunkSubscriber rest = new ChunkSubscriber(100, Integer.MAX_VALUE);
+        publisher.resumeAfter(position).subscribe(rest);
+        assertEquals(Integer.valueOf(149), rest.received.get(0));
+        assertEquals(Integer.valueOf(150), rest.received.get(1));
+        assertEquals(Integer.valueOf(1498), rest.received.get(rest.received.size() - 1));
+        assertEquals(1 + (1500 - 150) / 2, rest.received.size());
+        assertTrue(rest.completed);
+    }
+
+
+    @Test
+    public void emptyRangeCompletesWithoutDemand() {
+        TwoThreeTree<Integer> tree = new TwoThreeTree<Integer>();
+        tree.add(1);
+        final boolean[] completed = new boolean[1];
+        tree.rangePublisher(5, 10).subscribe(new Flow.Subscriber<Integer>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+            }
+
+            public void onNext(Integer item) {
+                fail();
+            }
+
+            public void onError(Throwable throwable) {
+                fail();
+            }
+
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+        assertTrue(completed[0]);
+    }
+
+
+    @Test
+    public void invalidRequestFromOnNextIsSignalledSerially() {
+        TwoThreeTree<Integer> tree = new TwoThreeTree<Integer>();
+        for (int i = 0; i < 100; i++) {
+            tree.add(i);
+        }
+        final List<Integer> received = new ArrayList<Integer>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        tree.rangePublisher(null, null).subscribe(new Flow.Subscriber<Integer>() {
+            Flow.Subscription subscription;
+            boolean inOnNext;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(10);
+            }
+
+            public void onNext(Integer item) {
+                inOnNext = true;
+                received.add(item);
+                if (received.size() == 3)
+                    subscription.request(0);
+                inOnNext = false;
+            }
+
+            public void onError(Throwable throwable) {
+                assertFalse("onError during onNext", inOnNext);
+                errors.add(throwable);
+            }
+
+            public void onComplete() {
+                fail();
+            }
+        });
+        assertEquals(Arrays.asList(0, 1, 2), received);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof IllegalArgumentException);
+    }
+}
@@ -0,0 +1,177 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+
+public class ShardedTwoThreeTreeTest {
+
+
+    // Small shards, so that splits and merges happen all the time.
+    @Test
+    public void compareToTreeSet() throws Throwable {
+        ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(16);
+        SortedSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(1000);
+            assertEquals(treeSet.add(value), sharded.add(value));
+        }
+        assertTrue(sharded.shardCount() > 1);
+        TwoThreeTest.assertSetEquals(treeSet, sharded);
+        assertEquals(treeSet.first(), sharded.first());
+        assertEquals(treeSet.last(), sharded.last());
+
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(1000);
+            assertEquals(treeSet.remove(value), sharded.remove(value));
+            assertEquals(treeSet.contains(value), sharded.contains(value));
+        }
+        TwoThreeTest.assertSetEquals(treeSet, sharded);
+    }
+
+
+    // Every shard takes more than maxShardSize writes here, which must not break the set into tiny shards:
+    // no two neighbouring shards can be small enough to merge.
+    @Test
+    public void uniformLoadKeepsShardsLarge() throws Throwable {
+        int maxShardSize = 64;
+        ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(maxShardSize);
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(10000);
+            if (random.nextBoolean())
+                sharded.add(value);
+            else
+                sharded.remove(value);
+        }
+        assertTrue(sharded.shardCount() + " shards for " + sharded.size() + " elements",
+                sharded.shardCount() <= 8 * sharded.size() / maxShardSize + 2);
+    }
+
+
+    // All writes fall into one window, whatever the speed of the machine.
+    @Test
+    public void hotRangeIsSplit() throws Throwable {
+        ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(64) {
+            @Override
+            long window() {
+                return 0;
+            }
+        };
+        for (int i = 0; i < 6400; i++) {
+            sharded.add(i);
+        }
+        int shardCount = sharded.shardCount();
+
+        // Writes spread over the whole range are not hot.
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 6400; i++) {
+                sharded.add(i);
+            }
+        }
+        assertEquals(shardCount, sharded.shardCount());
+
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 64; i++) {
+                sharded.add(i);
+            }
+        }
+        assertTrue(sharded.shardCount() > shardCount);
+    }
+
+
+    // Writes of a window that has passed do not count.
+    @Test
+    public void hotnessIsForgottenInTheNextWindow() throws Throwable {
+        final long[] window = {0};
+        ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(64) {
+            @Override
+            long window() {
+                return window[0];
+            }
+        };
+        for (int i = 0; i < 6400; i++) {
+            sharded.add(i);
+        }
+        int shardCount = sharded.shardCount();
+        // Each write goes to a different window, so no shard ever counts more than one.
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 64; i++) {
+                window[0]++;
+                sharded.add(i);
+            }
+        }
+        assertEquals(shardCount, sharded.shardCount());
+    }
+
+
+    @Test
+    public void iterateWhileSplitting() throws Throwable {
+        final ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(16);
+        for (int i = 0; i < 10000; i += 2) {
+            sharded.add(i);
+        }
+        // Odd values added during the iteration may or may not be seen, the even ones must be, in order.
+        Iterator<Integer> iterator = sharded.iterator();
+        int previous = -1;
+        int even = 0;
+        while (iterator.hasNext()) {
+            int value = iterator.next();
+            assertTrue(value > previous);
+            previous = value;
+            if (value % 2 == 0)
+                even++;
+            if (value + 1 < 10000)
+                sharded.add(value + 1);
+        }
+        assertEquals(5000, even);
+    }
+
+
+    @Test
+    public void parallelWriters() throws Throwable {
+        final ShardedTwoThreeTree<Integer> sharded = new ShardedTwoThreeTree<Integer>(64);
+        final int threads = 4;
+        final int perThread = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            sharded.add(i * threads + offset);
+                        }
+                        // Remove every other value this thread added.
+                        for (int i = 0; i < perThread; i += 2) {
+                            sharded.remove(i * threads + offset);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        SortedSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < threads * perThread; i++) {
+            if ((i / threads) % 2 == 1)
+                expected.add(i);
+        }
+        TwoThreeTest.assertSetEquals(expected, sharded);
+    }
+}
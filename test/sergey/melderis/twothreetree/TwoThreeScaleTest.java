@@ -0,0 +1,294 @@
+package sergey.melderis.twothreetree;
+
+
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+
+/**
+ * Builds large trees and reports what they cost: bytes per element, height, ratio of 3-nodes and bytes
+ * allocated per operation, next to the same numbers for TreeSet.
+ *
+ * Sizes go from 10^6 up to the value of the twothreetree.scale.max system property, multiplying by 10.
+ * The tests take a while, so they are skipped unless the property is set: -Dtwothreetree.scale.max=1000000
+ * runs them once. 10^8 needs a heap of several gigabytes, e.g.
+ *   -Xmx24g -Dtwothreetree.scale.max=100000000
+ *
+ * Bytes per element are measured as the drop in used heap when the set is released. G1 reports heap usage
+ * with region granularity, so run with -XX:+UseParallelGC when the exact numbers matter.
+ */
+public class TwoThreeScaleTest {
+
+    private static final String MAX_SIZE_PROPERTY = "twothreetree.scale.max";
+    private static final int MIN_SIZE = 1000000;
+
+    private static int maxSize() {
+        return Integer.parseInt(System.getProperty(MAX_SIZE_PROPERTY));
+    }
+
+
+    @Before
+    public void requireMaxSize() {
+        Assume.assumeTrue(System.getProperty(MAX_SIZE_PROPERTY) != null);
+    }
+
+
+    @Test
+    public void insertOnly() throws Throwable {
+        for (int n = MIN_SIZE; n > 0 && n <= maxSize(); n *= 10) {
+            Integer[] keys = randomKeys(n, new Random(n));
+            report("insert", n, build(new TwoThreeTree<Integer>(), keys, n), build(new TreeSet<Integer>(), keys, n));
+        }
+    }
+
+
+    // Insert all keys, then delete half of them and insert the other half again.
+    @Test
+    public void insertDeleteMix() throws Throwable {
+        for (int n = MIN_SIZE; n > 0 && n <= maxSize(); n *= 10) {
+            Integer[] keys = randomKeys(n, new Random(n));
+            report("mixed", n, mix(new TwoThreeTree<Integer>(), keys), mix(new TreeSet<Integer>(), keys));
+        }
+    }
+
+
+    // Random keys, half of them in the set, looked up one by one and in batches of different sizes.
+    @Test
+    public void batchLookup() throws Throwable {
+        for (int n = MIN_SIZE; n > 0 && n <= maxSize(); n *= 10) {
+            Random random = new Random(n);
+            List<Integer> values = new ArrayList<Integer>(n);
+            for (int i = 0; i < n; i++) {
+                values.add(random.nextInt(2 * n));
+            }
+            TwoThreeTree<Integer> tree = TwoThreeTree.fromUnsorted(values);
+            values = null;
+            System.out.printf("lookup  n=%,d%n", n);
+            // The first round warms up both.
+            for (int round = 0; round < 2; round++) {
+                for (int k = 100; k <= 100000; k *= 10) {
+                    Integer[][] batches = new Integer[Math.max(1, 1000000 / k)][k];
+                    for (Integer[] batch : batches) {
+                        for (int i = 0; i < k; i++) {
+                            batch[i] = random.nextInt(2 * n);
+                        }
+                    }
+                    long found = 0;
+                    long start = System.nanoTime();
+                    for (Integer[] batch : batches) {
+                        for (Integer key : batch) {
+                            if (tree.contains(key))
+                                found++;
+                        }
+                    }
+                    long middle = System.nanoTime();
+                    for (Integer[] batch : batches) {
+                        found -= tree.lookupBatch(batch).cardinality();
+                    }
+                    long end = System.nanoTime();
+                    assertEquals(0, found);
+                    if (round > 0) {
+                        long keys = (long) batches.length * k;
+                        System.out.printf("  k=%-7d contains %6d ns/key, lookupBatch %6d ns/key%n", k,
+                                (middle - start) / keys, (end - middle) / keys);
+                    }
+                }
+            }
+        }
+    }
+
+
+    // Keys with long common prefixes, like "customer/eu/12345678", stored as Strings and in a ByteKeyTwoThreeTree.
+    // The keys are created by the loop that adds them, so bytes per element include the keys.
+    @Test
+    public void prefixedKeys() throws Throwable {
+        for (int n = MIN_SIZE; n > 0 && n <= maxSize(); n *= 10) {
+            String[] lookups = new String[n];
+            Random random = new Random(n);
+            for (int i = 0; i < n; i++) {
+                lookups[i] = prefixedKey(random);
+            }
+            // Warms up both, so neither is measured while it is being compiled.
+            lookupNanos(addPrefixedKeys(new TwoThreeTree<String>(), n / 10).set, lookups);
+            lookupNanos(addPrefixedKeys(new ByteKeyTwoThreeTree(), n / 10).set, lookups);
+            Result<TwoThreeTree<String>> strings = addPrefixedKeys(new TwoThreeTree<String>(), n);
+            Result<ByteKeyTwoThreeTree> byteKeys = addPrefixedKeys(new ByteKeyTwoThreeTree(), n);
+            assertSameKeys(strings.set, byteKeys.set);
+
+            int size = strings.set.size();
+            System.out.printf("keys    n=%,d size=%,d%n", n, size);
+            System.out.printf("  contains String   %6d ns/op%n", lookupNanos(strings.set, lookups) / n);
+            System.out.printf("  contains ByteKey  %6d ns/op%n", lookupNanos(byteKeys.set, lookups) / n);
+            print("  String      ", strings, size);
+            print("  ByteKey     ", byteKeys, size);
+        }
+    }
+
+
+    private static String prefixedKey(Random random) {
+        String[] regions = {"eu", "us", "apac"};
+        return "customer/" + regions[random.nextInt(regions.length)] + "/" + (10000000 + random.nextInt(90000000));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <S extends Set<?>> Result<S> addPrefixedKeys(S set, int n) {
+        ByteKeyTwoThreeTree byteKeys = set instanceof ByteKeyTwoThreeTree ? (ByteKeyTwoThreeTree) set : null;
+        Random random = new Random(n);
+        Result<S> result = new Result<S>();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            String key = prefixedKey(random);
+            if (byteKeys != null)
+                byteKeys.add(key);
+            else
+                ((Set<String>) set).add(key);
+        }
+        result.nanos = System.nanoTime() - start;
+        result.allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        result.operations = n;
+        result.set = set;
+        return result;
+    }
+
+
+    private static void assertSameKeys(Set<?> strings, ByteKeyTwoThreeTree byteKeys) {
+        assertEquals(strings.size(), byteKeys.size());
+        Iterator<?> expected = strings.iterator();
+        for (ByteKey key : byteKeys) {
+            assertEquals(expected.next(), key.toString());
+        }
+    }
+
+
+    private static long lookupNanos(Set<?> set, String[] keys) {
+        ByteKeyTwoThreeTree byteKeys = set instanceof ByteKeyTwoThreeTree ? (ByteKeyTwoThreeTree) set : null;
+        long start = System.nanoTime();
+        int found = 0;
+        for (String key : keys) {
+            if (byteKeys != null ? byteKeys.contains(key) : set.contains(key))
+                found++;
+        }
+        assertTrue(found > 0);
+        return System.nanoTime() - start;
+    }
+
+
+    private static final class Result<S extends Set<?>> {
+        S set;
+        long allocated;
+        long operations;
+        long nanos;
+    }
+
+
+    private static Integer[] randomKeys(int n, Random random) {
+        Set<Integer> unique = new HashSet<Integer>(n * 2);
+        while (unique.size() < n) {
+            unique.add(random.nextInt());
+        }
+        Integer[] keys = unique.toArray(new Integer[n]);
+        Collections.shuffle(Arrays.asList(keys), random);
+        return keys;
+    }
+
+
+    private static <S extends Set<Integer>> Result<S> build(S set, Integer[] keys, int n) {
+        Result<S> result = new Result<S>();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            set.add(keys[i]);
+        }
+        result.nanos = System.nanoTime() - start;
+        result.allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        result.operations = n;
+        result.set = set;
+        assertEquals(n, set.size());
+        return result;
+    }
+
+
+    private static <S extends Set<Integer>> Result<S> mix(S set, Integer[] keys) {
+        int n = keys.length;
+        Result<S> result = new Result<S>();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (Integer key : keys) {
+            set.add(key);
+        }
+        for (int i = 0; i < n; i += 2) {
+            assertTrue(set.remove(keys[i]));
+        }
+        for (int i = 1; i < n; i += 2) {
+            assertTrue(set.remove(keys[i]));
+            set.add(keys[i - 1]);
+        }
+        result.nanos = System.nanoTime() - start;
+        result.allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        result.operations = n * 3L;
+        result.set = set;
+        assertEquals(n / 2, set.size());
+        return result;
+    }
+
+
+    private static void report(String workload, int n, Result<TwoThreeTree<Integer>> tree,
+                               Result<TreeSet<Integer>> treeSet) throws Throwable {
+        TwoThreeTree<Integer> twoThreeTree = tree.set;
+        int size = twoThreeTree.size();
+        int height = twoThreeTree.height();
+        int[] nodes = twoThreeTree.countNodes();
+
+        // Every node holds at least one value, and all leaves are at the same depth.
+        assertEquals(size, nodes[0] + 2 * nodes[1]);
+        assertTrue(height <= 1 + Math.log(size + 1) / Math.log(2));
+        assertTrue(height >= Math.log(size + 1) / Math.log(3));
+        TwoThreeTest.assertSetEquals(treeSet.set, twoThreeTree);
+        twoThreeTree = null;
+
+        System.out.printf("%-7s n=%,d size=%,d height=%d 3-nodes=%.3f%n", workload, n, size, height,
+                nodes[1] / (double) (nodes[0] + nodes[1]));
+        print("  TwoThreeTree", tree, size);
+        print("  TreeSet     ", treeSet, size);
+    }
+
+
+    // Releases the set and prints its cost. The keys are not counted, they stay reachable from the caller.
+    private static void print(String name, Result<?> result, int size) {
+        long used = usedMemory();
+        result.set = null;
+        long bytes = used - usedMemory();
+        System.out.printf("%s %6.1f bytes/element %8s bytes allocated/op %6d ns/op%n", name,
+                bytes / (double) size,
+                result.allocated < 0 ? "n/a" : String.format("%.1f", result.allocated / (double) result.operations),
+                result.nanos / result.operations);
+    }
+
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    // Bytes allocated by the current thread, or -1 if the JVM cannot tell.
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -4,7 +4,9 @@ package sergey.melderis.twothreetree;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 
 
@@ -70,6 +72,708 @@ public class TwoThreeTest {
     }
 
 
+    // Checks that all terminal nodes are at the same depth and values are in order.
+    public static void assertBalanced(TwoThreeTree<Integer> tree) {
+        int height = tree.height();
+        assertEquals(tree.size(), checkNode(tree.root, 1, height, null, null));
+    }
+
+    private static int checkNode(Node<Integer> node, int depth, int height, Integer low, Integer high) {
+        if (node == null) {
+            assertEquals(height + 1, depth);
+            return 0;
+        }
+        Integer left = node.isTwoNode() ? node.val() : node.leftVal();
+        Integer right = node.isTwoNode() ? node.val() : node.rightVal();
+        assertTrue(low == null || low < left);
+        assertTrue(high == null || right < high);
+        assertTrue(left <= right);
+        if (node.isTwoNode()) {
+            return 1 + checkNode(node.leftChild(), depth + 1, height, low, left)
+                    + checkNode(node.rightChild(), depth + 1, height, left, high);
+        }
+        return 2 + checkNode(node.leftChild(), depth + 1, height, low, left)
+                + checkNode(node.middleChild(), depth + 1, height, left, right)
+                + checkNode(node.rightChild(), depth + 1, height, right, high);
+    }
+
+
+    @Test
+    public void removeRange() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int round = 0; round < 200; round++) {
+            TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+            SortedSet<Integer> treeSet = new TreeSet<Integer>();
+            int size = random.nextInt(300);
+            for (int i = 0; i < size; i++) {
+                int value = random.nextInt(1000);
+                twoThreeTree.add(value);
+                treeSet.add(value);
+            }
+
+            int from = random.nextInt(1100) - 50;
+            int to = from + random.nextInt(600);
+            int expected = treeSet.subSet(from, to).size();
+            treeSet.subSet(from, to).clear();
+            assertEquals(expected, twoThreeTree.removeRange(from, to));
+            assertSetEquals(treeSet, twoThreeTree);
+            assertBalanced(twoThreeTree);
+
+            // The tree must keep working after being split and joined.
+            for (int i = 0; i < 100; i++) {
+                int value = random.nextInt(1000);
+                if (random.nextBoolean())
+                    assertEquals(treeSet.add(value), twoThreeTree.add(value));
+                else
+                    assertEquals(treeSet.remove(value), twoThreeTree.remove(value));
+            }
+            assertSetEquals(treeSet, twoThreeTree);
+            assertBalanced(twoThreeTree);
+        }
+    }
+
+
+    @Test
+    public void applySorted() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int round = 0; round < 200; round++) {
+            boolean summed = round % 3 == 0;
+            TwoThreeTree<Integer> twoThreeTree = summed ? new TwoThreeTree<Integer>(SUM) : new TwoThreeTree<Integer>();
+            twoThreeTree.setHashIndexed(round % 2 == 0);
+            SortedSet<Integer> treeSet = new TreeSet<Integer>();
+            int size = random.nextInt(300);
+            for (int i = 0; i < size; i++) {
+                int value = random.nextInt(1000);
+                twoThreeTree.add(value);
+                treeSet.add(value);
+            }
+
+            // A sorted batch of adds of absent values and removes of present ones.
+            SortedSet<Integer> batch = new TreeSet<Integer>();
+            int batchSize = random.nextInt(100);
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(random.nextInt(1000));
+            }
+            Object[] values = batch.toArray();
+            boolean[] added = new boolean[values.length];
+            for (int i = 0; i < values.length; i++) {
+                added[i] = !treeSet.contains(values[i]);
+                if (added[i])
+                    treeSet.add((Integer) values[i]);
+                else
+                    treeSet.remove(values[i]);
+            }
+            twoThreeTree.applySorted(values, added, values.length);
+            assertSetEquals(treeSet, twoThreeTree);
+            assertBalanced(twoThreeTree);
+            assertEquals(new HashSet<Integer>(treeSet).hashCode(), twoThreeTree.hashCode());
+            for (Object value : values) {
+                assertEquals(treeSet.contains(value), twoThreeTree.contains((Integer) value));
+            }
+            if (summed && !treeSet.isEmpty()) {
+                long sum = 0;
+                for (int value : treeSet) {
+                    sum += value;
+                }
+                assertEquals(Long.valueOf(sum), twoThreeTree.aggregate(treeSet.first(), treeSet.last() + 1));
+            }
+        }
+    }
+
+
+    @Test
+    public void removeMatching() throws Throwable {
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+        SortedSet<Integer> treeSet = new TreeSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            twoThreeTree.add(i);
+            treeSet.add(i);
+        }
+
+        // A few long runs are removed as ranges.
+        assertTrue(twoThreeTree.removeMatching(new TwoThreeTree.Predicate<Integer>() {
+            public boolean apply(Integer value) {
+                return value % 300 < 100;
+            }
+        }));
+        for (int i = 0; i < 1000; i++) {
+            if (i % 300 < 100)
+                treeSet.remove(i);
+        }
+        assertSetEquals(treeSet, twoThreeTree);
+        assertBalanced(twoThreeTree);
+
+        // Every other element, the tree is rebuilt.
+        assertTrue(twoThreeTree.removeMatching(new TwoThreeTree.Predicate<Integer>() {
+            public boolean apply(Integer value) {
+                return value % 2 == 0;
+            }
+        }));
+        for (int i = 0; i < 1000; i += 2) {
+            treeSet.remove(i);
+        }
+        assertSetEquals(treeSet, twoThreeTree);
+        assertBalanced(twoThreeTree);
+
+        assertFalse(twoThreeTree.removeMatching(new TwoThreeTree.Predicate<Integer>() {
+            public boolean apply(Integer value) {
+                return value < 0;
+            }
+        }));
+        for (Integer value : new ArrayList<Integer>(treeSet)) {
+            assertTrue(twoThreeTree.remove(value));
+        }
+        assertTrue(twoThreeTree.isEmpty());
+    }
+
+
+    @Test
+    public void lookupBatch() {
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 50000; i++) {
+            twoThreeTree.add(random.nextInt(100000));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int size : new int[] {0, 1, 10, 1000, 100000}) {
+            Integer[] keys = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = random.nextInt(110000);
+            }
+            BitSet sequential = twoThreeTree.lookupBatch(keys);
+            BitSet parallel = twoThreeTree.lookupBatch(keys, pool);
+            for (int i = 0; i < size; i++) {
+                assertEquals(twoThreeTree.contains(keys[i]), sequential.get(i));
+            }
+            assertEquals(sequential, parallel);
+
+            Arrays.sort(keys);
+            assertEquals(sequential.cardinality(), twoThreeTree.lookupBatch(keys).cardinality());
+        }
+        pool.shutdown();
+
+        Integer[] present = twoThreeTree.toArray(new Integer[0]);
+        assertTrue(twoThreeTree.containsAll(present));
+        present[present.length / 2] = -1;
+        assertFalse(twoThreeTree.containsAll(present));
+    }
+
+
+    @Test
+    public void fromUnsorted() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int size : new int[] {0, 1, 2, 3, 100, 200000}) {
+            List<Integer> values = new ArrayList<Integer>();
+            for (int i = 0; i < size; i++) {
+                values.add(random.nextInt(size + 1));
+            }
+            SortedSet<Integer> treeSet = new TreeSet<Integer>(values);
+
+            TwoThreeTree<Integer> sequential = TwoThreeTree.fromUnsorted(values);
+            TwoThreeTree<Integer> parallel = TwoThreeTree.fromUnsorted(values, pool);
+            assertSetEquals(treeSet, sequential);
+            assertSetEquals(treeSet, parallel);
+            assertBalanced(sequential);
+            assertBalanced(parallel);
+
+            // Built trees must support the usual updates.
+            for (int i = 0; i < 100; i++) {
+                int value = random.nextInt(size + 1);
+                assertEquals(treeSet.contains(value), parallel.remove(value));
+                assertTrue(parallel.add(value));
+                treeSet.add(value);
+            }
+            assertSetEquals(treeSet, parallel);
+            assertBalanced(parallel);
+        }
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void hashIndex() throws Throwable {
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+        SortedSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int i = 0; i < 500; i++) {
+            int value = random.nextInt(2000);
+            twoThreeTree.add(value);
+            treeSet.add(value);
+        }
+        twoThreeTree.setHashIndexed(true);
+        assertTrue(twoThreeTree.isHashIndexed());
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                int value = random.nextInt(2000);
+                if (random.nextBoolean())
+                    assertEquals(treeSet.add(value), twoThreeTree.add(value));
+                else
+                    assertEquals(treeSet.remove(value), twoThreeTree.remove(value));
+            }
+            int from = random.nextInt(2000);
+            int to = from + random.nextInt(200);
+            treeSet.subSet(from, to).clear();
+            twoThreeTree.removeRange(from, to);
+            final int divisor = 2 + random.nextInt(20);
+            twoThreeTree.removeMatching(new TwoThreeTree.Predicate<Integer>() {
+                public boolean apply(Integer value) {
+                    return value % divisor == 0;
+                }
+            });
+            for (Iterator<Integer> it = treeSet.iterator(); it.hasNext(); ) {
+                if (it.next() % divisor == 0)
+                    it.remove();
+            }
+
+            assertSetEquals(treeSet, twoThreeTree);
+            for (int value = -1; value <= 2000; value++) {
+                assertEquals(treeSet.contains(value), twoThreeTree.contains(value));
+            }
+        }
+
+        twoThreeTree.clear();
+        assertFalse(twoThreeTree.contains(treeSet.first()));
+        assertTrue(twoThreeTree.add(treeSet.first()));
+        assertTrue(twoThreeTree.contains(treeSet.first()));
+        twoThreeTree.setHashIndexed(false);
+        assertTrue(twoThreeTree.contains(treeSet.first()));
+    }
+
+
+    private static final TwoThreeTree.Monoid<Integer, Long> SUM = new TwoThreeTree.Monoid<Integer, Long>() {
+        public Long identity() {
+            return 0L;
+        }
+
+        public Long lift(Integer value) {
+            return (long) value;
+        }
+
+        public Long combine(Long left, Long right) {
+            return left + right;
+        }
+    };
+
+
+    // Not commutative, catches values combined out of order.
+    private static final TwoThreeTree.Monoid<Integer, String> CONCAT = new TwoThreeTree.Monoid<Integer, String>() {
+        public String identity() {
+            return "";
+        }
+
+        public String lift(Integer value) {
+            return value + ",";
+        }
+
+        public String combine(String left, String right) {
+            return left + right;
+        }
+    };
+
+
+    @Test
+    public void aggregate() throws Throwable {
+        TwoThreeTree<Integer> sums = new TwoThreeTree<Integer>(SUM);
+        TwoThreeTree<Integer> lists = new TwoThreeTree<Integer>(CONCAT);
+        SortedSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                int value = random.nextInt(1000);
+                if (random.nextInt(3) > 0) {
+                    assertEquals(treeSet.add(value), sums.add(value));
+                    lists.add(value);
+                } else {
+                    assertEquals(treeSet.remove(value), sums.remove(value));
+                    lists.remove(value);
+                }
+            }
+            if (round % 5 == 4) {
+                int from = random.nextInt(1000);
+                int to = from + random.nextInt(100);
+                treeSet.subSet(from, to).clear();
+                sums.removeRange(from, to);
+                lists.removeRange(from, to);
+            }
+            assertSetEquals(treeSet, sums);
+            assertBalanced(sums);
+
+            for (int i = 0; i < 50; i++) {
+                int from = random.nextInt(1100) - 50;
+                int to = from + random.nextInt(500);
+                long sum = 0;
+                StringBuilder list = new StringBuilder();
+                for (int value : treeSet.subSet(from, to)) {
+                    sum += value;
+                    list.append(value).append(',');
+                }
+                assertEquals(Long.valueOf(sum), sums.<Long>aggregate(from, to));
+                assertEquals(list.toString(), lists.<String>aggregate(from, to));
+            }
+            long total = 0;
+            for (int value : treeSet) {
+                total += value;
+            }
+            assertEquals(Long.valueOf(total), sums.<Long>aggregate(null, null));
+            if (!treeSet.isEmpty()) {
+                int middle = treeSet.first() + (treeSet.last() - treeSet.first()) / 2;
+                long head = 0;
+                for (int value : treeSet.headSet(middle)) {
+                    head += value;
+                }
+                assertEquals(Long.valueOf(head), sums.<Long>aggregate(null, middle));
+                assertEquals(Long.valueOf(total - head), sums.<Long>aggregate(middle, null));
+            }
+        }
+
+        sums.removeMatching(new TwoThreeTree.Predicate<Integer>() {
+            public boolean apply(Integer value) {
+                return value % 2 == 0;
+            }
+        });
+        long odd = 0;
+        for (int value : treeSet) {
+            if (value % 2 != 0)
+                odd += value;
+        }
+        assertEquals(Long.valueOf(odd), sums.<Long>aggregate(null, null));
+    }
+
+
+    @Test
+    public void descendingSet() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int size : new int[] {0, 1, 2, 3, 10, 1000}) {
+            TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+            TreeSet<Integer> treeSet = new TreeSet<Integer>();
+            for (int i = 0; i < size; i++) {
+                int value = random.nextInt(size * 3);
+                twoThreeTree.add(value);
+                treeSet.add(value);
+            }
+
+            List<Integer> expected = new ArrayList<Integer>();
+            for (Iterator<Integer> it = treeSet.descendingIterator(); it.hasNext(); ) {
+                expected.add(it.next());
+            }
+            List<Integer> actual = new ArrayList<Integer>();
+            for (Iterator<Integer> it = twoThreeTree.descendingIterator(); it.hasNext(); ) {
+                actual.add(it.next());
+            }
+            assertEquals(expected, actual);
+
+            SortedSet<Integer> descending = twoThreeTree.descendingSet();
+            assertSetEquals(treeSet.descendingSet(), descending);
+            if (size > 0) {
+                assertEquals(treeSet.last(), descending.first());
+                assertEquals(treeSet.first(), descending.last());
+                assertTrue(descending.remove(treeSet.first()));
+                assertFalse(twoThreeTree.contains(treeSet.first()));
+            }
+        }
+    }
+
+
+    @Test
+    public void mergeOperations() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int round = 0; round < 50; round++) {
+            TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+            SortedSet<Integer> treeSet = new TreeSet<Integer>();
+            int size = random.nextInt(500);
+            for (int i = 0; i < size; i++) {
+                int value = random.nextInt(1000);
+                twoThreeTree.add(value);
+                treeSet.add(value);
+            }
+            assertTrue(twoThreeTree.equals(treeSet));
+            assertTrue(twoThreeTree.equals(TwoThreeTree.fromUnsorted(treeSet)));
+            assertTrue(twoThreeTree.containsAll(treeSet));
+            assertEquals(treeSet.hashCode(), twoThreeTree.hashCode());
+
+            // Same size, one element different.
+            SortedSet<Integer> other = new TreeSet<Integer>(treeSet);
+            if (!other.isEmpty()) {
+                other.remove(other.first());
+                other.add(-1);
+                assertFalse(twoThreeTree.equals(other));
+                assertFalse(twoThreeTree.equals(TwoThreeTree.fromUnsorted(other)));
+                assertFalse(twoThreeTree.containsAll(other));
+            }
+
+            // A large sorted set to remove, merged with the tree.
+            SortedSet<Integer> toRemove = new TreeSet<Integer>();
+            for (int i = 0; i < 600; i++) {
+                toRemove.add(random.nextInt(1100));
+            }
+            assertEquals(treeSet.removeAll(toRemove), twoThreeTree.removeAll(toRemove));
+            assertSetEquals(treeSet, twoThreeTree);
+            assertBalanced(twoThreeTree);
+            assertEquals(treeSet.hashCode(), twoThreeTree.hashCode());
+
+            // Small collections are removed one by one.
+            List<Integer> few = Arrays.asList(random.nextInt(1000), random.nextInt(1000));
+            assertEquals(treeSet.removeAll(few), twoThreeTree.removeAll(few));
+            assertSetEquals(treeSet, twoThreeTree);
+            assertEquals(treeSet.hashCode(), twoThreeTree.hashCode());
+
+            int from = random.nextInt(1000);
+            treeSet.subSet(from, from + 50).clear();
+            twoThreeTree.removeRange(from, from + 50);
+            assertEquals(treeSet.hashCode(), twoThreeTree.hashCode());
+        }
+
+        // Elements of another type.
+        TwoThreeTree<Integer> one = TwoThreeTree.fromUnsorted(Arrays.asList(1));
+        assertFalse(one.equals(new TreeSet<String>(Arrays.asList("a"))));
+        assertFalse(one.containsAll(new TreeSet<String>(Arrays.asList("a"))));
+
+        // Equal by compareTo, with different hash codes.
+        TwoThreeTree<BigDecimal> decimals = new TwoThreeTree<BigDecimal>();
+        decimals.add(new BigDecimal("1.0"));
+        TwoThreeTree<BigDecimal> scaled = new TwoThreeTree<BigDecimal>();
+        scaled.add(new BigDecimal("1.00"));
+        assertTrue(decimals.hashCode() != scaled.hashCode());
+        assertTrue(decimals.equals(scaled));
+    }
+
+
+    @Test
+    public void floorAndCeiling() {
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+        TreeSet<Integer> treeSet = new TreeSet<Integer>();
+        Random random = new Random(System.currentTimeMillis());
+        assertNull(twoThreeTree.floor(1));
+        assertNull(twoThreeTree.ceiling(1));
+        for (int i = 0; i < 500; i++) {
+            int value = random.nextInt(2000);
+            twoThreeTree.add(value);
+            treeSet.add(value);
+        }
+        for (int value = -10; value < 2010; value++) {
+            assertEquals(treeSet.floor(value), twoThreeTree.floor(value));
+            assertEquals(treeSet.ceiling(value), twoThreeTree.ceiling(value));
+        }
+    }
+
+
+    @Test
+    public void cursor() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        for (int n : new int[] {0, 1, 2, 10, 1000}) {
+            TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+            TreeSet<Integer> treeSet = new TreeSet<Integer>();
+            for (int i = 0; i < n; i++) {
+                int value = random.nextInt(5 * n);
+                twoThreeTree.add(value);
+                treeSet.add(value);
+            }
+            for (int round = 0; round < 20; round++) {
+                TwoThreeTree.Cursor<Integer> cursor = twoThreeTree.cursor();
+                Integer expected = treeSet.isEmpty() ? null : treeSet.first();
+                int key = -5;
+                while (expected != null) {
+                    assertEquals(expected, cursor.peek());
+                    if (random.nextBoolean()) {
+                        assertEquals(expected, cursor.next());
+                        assertEquals(expected, cursor.key());
+                        expected = treeSet.higher(expected);
+                    } else {
+                        // Seeks behind the current position too, which must not move the cursor.
+                        key += random.nextInt(n / 5 + 3) - 1;
+                        if (expected < key)
+                            expected = treeSet.ceiling(key);
+                        assertEquals(expected, cursor.seek(key));
+                    }
+                }
+                assertFalse(cursor.hasNext());
+                assertNull(cursor.peek());
+                assertNull(cursor.seek(Integer.MAX_VALUE));
+            }
+        }
+        try {
+            new TwoThreeTree<Integer>().cursor().key();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+
+    @Test
+    public void leapfrogIntersection() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        List<TwoThreeTree<Integer>> trees = new ArrayList<TwoThreeTree<Integer>>();
+        TreeSet<Integer> expected = null;
+        for (int t = 0; t < 3; t++) {
+            TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>();
+            for (int i = 0; i < 2000; i++) {
+                twoThreeTree.add(random.nextInt(6000));
+            }
+            trees.add(twoThreeTree);
+            if (expected == null)
+                expected = new TreeSet<Integer>(twoThreeTree);
+            else
+                expected.retainAll(twoThreeTree);
+        }
+
+        List<TwoThreeTree.Cursor<Integer>> cursors = new ArrayList<TwoThreeTree.Cursor<Integer>>();
+        for (TwoThreeTree<Integer> twoThreeTree : trees) {
+            cursors.add(twoThreeTree.cursor());
+        }
+        List<Integer> intersection = new ArrayList<Integer>();
+        Integer max = cursors.get(0).peek();
+        int matched = 0;
+        for (int i = 0; max != null; i = (i + 1) % cursors.size()) {
+            Integer value = cursors.get(i).seek(max);
+            if (value == null)
+                break;
+            if (value.equals(max)) {
+                if (++matched == cursors.size()) {
+                    intersection.add(value);
+                    cursors.get(i).next();
+                    max = cursors.get(i).peek();
+                    matched = 1;
+                }
+            } else {
+                max = value;
+                matched = 1;
+            }
+        }
+        assertEquals(new ArrayList<Integer>(expected), intersection);
+    }
+
+
+    @Test
+    public void abbreviatedKeys() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+
+        // Strings that share their first four characters tie on the prefix.
+        TwoThreeTree<String> strings = new TwoThreeTree<String>(TwoThreeTree.KeyNormalizer.STRING);
+        TreeSet<String> stringSet = new TreeSet<String>();
+        for (int i = 0; i < 5000; i++) {
+            // Characters above 0x7fff make prefixes that are negative as signed numbers.
+            char high = (char) (0xff00 + random.nextInt(3));
+            int kind = random.nextInt(3);
+            String value = kind == 0 ? "key-" + random.nextInt(1000)
+                    : kind == 1 ? Integer.toString(random.nextInt(100), 36) + high
+                    : high + Integer.toString(random.nextInt(100), 36);
+            int op = random.nextInt(4);
+            if (op < 2)
+                assertEquals(stringSet.add(value), strings.add(value));
+            else if (op == 2)
+                assertEquals(stringSet.remove(value), strings.remove(value));
+            else
+                assertEquals(stringSet.contains(value), strings.contains(value));
+        }
+        assertSetEquals(stringSet, strings);
+        assertEquals(stringSet.pollFirst(), strings.pollFirst());
+        assertEquals(stringSet.pollLast(), strings.pollLast());
+        assertPrefixes(strings.root, TwoThreeTree.KeyNormalizer.STRING);
+        TwoThreeTree<String> copy = new TwoThreeTree<String>(strings);
+        for (String value : stringSet) {
+            assertTrue(copy.contains(value));
+        }
+
+        // Eight neighbouring integers share a prefix.
+        TwoThreeTree.KeyNormalizer<Integer> coarse = new TwoThreeTree.KeyNormalizer<Integer>() {
+            public long prefix(Integer value) {
+                return (value - (long) Integer.MIN_VALUE) >> 3;
+            }
+        };
+        TwoThreeTree<Integer> twoThreeTree = new TwoThreeTree<Integer>(coarse);
+        TreeSet<Integer> treeSet = new TreeSet<Integer>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                int value = random.nextInt(4000) - 2000;
+                if (random.nextInt(3) > 0)
+                    assertEquals(treeSet.add(value), twoThreeTree.add(value));
+                else
+                    assertEquals(treeSet.remove(value), twoThreeTree.remove(value));
+            }
+            // Split and join move values between nodes too.
+            int from = random.nextInt(4000) - 2000;
+            int to = from + random.nextInt(200);
+            twoThreeTree.removeRange(from, to);
+            treeSet.subSet(from, to).clear();
+            assertBalanced(twoThreeTree);
+            assertPrefixes(twoThreeTree.root, coarse);
+            for (int value = -2000; value < 2000; value++) {
+                assertEquals(treeSet.contains(value), twoThreeTree.contains(value));
+            }
+        }
+        assertPrefixes(twoThreeTree.clone().root, coarse);
+    }
+
+
+    // Checks that every node caches the prefixes of its current values.
+    private static <T extends Comparable> void assertPrefixes(Node<T> node, TwoThreeTree.KeyNormalizer<T> normalizer) {
+        if (node == null)
+            return;
+        long leftKey = node instanceof AbbreviatedLeaf ? ((AbbreviatedLeaf<T>) node).leftKey : ((AbbreviatedInternal<T>) node).leftKey;
+        long rightKey = node instanceof AbbreviatedLeaf ? ((AbbreviatedLeaf<T>) node).rightKey : ((AbbreviatedInternal<T>) node).rightKey;
+        assertEquals(TwoThreeTree.prefix(normalizer, node.leftVal), leftKey);
+        if (node.isThreeNode()) {
+            assertEquals(TwoThreeTree.prefix(normalizer, node.rightVal), rightKey);
+            assertPrefixes(node.middleChild(), normalizer);
+        }
+        assertPrefixes(node.leftChild(), normalizer);
+        assertPrefixes(node.rightChild(), normalizer);
+    }
+
+
+    @Test
+    public void copy() throws Throwable {
+        Random random = new Random(System.currentTimeMillis());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int size : new int[] {0, 1, 100, 100000}) {
+            TwoThreeTree<Integer> original = new TwoThreeTree<Integer>(SUM);
+            SortedSet<Integer> treeSet = new TreeSet<Integer>();
+            for (int i = 0; i < size; i++) {
+                int value = random.nextInt(size * 2);
+                original.add(value);
+                treeSet.add(value);
+            }
+            original.setHashIndexed(true);
+            Long sum = original.aggregate(null, null);
+
+            List<TwoThreeTree<Integer>> copies = new ArrayList<TwoThreeTree<Integer>>();
+            copies.add(new TwoThreeTree<Integer>(original));
+            copies.add(new TwoThreeTree<Integer>(original, pool));
+            copies.add(original.clone());
+            for (TwoThreeTree<Integer> copy : copies) {
+                assertSetEquals(treeSet, copy);
+                assertBalanced(copy);
+                assertTrue(copy.isHashIndexed());
+                assertEquals(sum, copy.<Long>aggregate(null, null));
+                assertEquals(treeSet.hashCode(), copy.hashCode());
+
+                // The copy is independent of the original.
+                for (int i = 0; i < 100; i++) {
+                    int value = random.nextInt(size * 2 + 1);
+                    copy.remove(value);
+                    copy.add(-value - 1);
+                }
+                assertSetEquals(treeSet, original);
+                assertEquals(sum, original.<Long>aggregate(null, null));
+                assertBalanced(copy);
+            }
+        }
+        pool.shutdown();
+
+        BoundedTwoThreeTree<Integer> bounded = new BoundedTwoThreeTree<Integer>(2, BoundedTwoThreeTree.Retain.LARGEST);
+        bounded.add(1);
+        bounded.add(2);
+        TwoThreeTree<Integer> clone = bounded.clone();
+        assertTrue(clone instanceof BoundedTwoThreeTree);
+        assertTrue(clone.add(3));
+        assertEquals(Arrays.asList(2, 3), new ArrayList<Integer>(clone));
+        assertEquals(Arrays.asList(1, 2), new ArrayList<Integer>(bounded));
+    }
+
+
     @Test
     public void testIterator() {
         SortedSet<Integer> twoThreeTree = new TwoThreeTree<Integer>();